@@ -0,0 +1,75 @@
+package Benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import pqrtree.ConcurrentPQRTree;
+import pqrtree.PQRTree;
+
+/**
+ * Compares many threads adding constraints to one PQRTree behind a lock with
+ * the same threads adding them to a ConcurrentPQRTree.
+ * <p>
+ * The constraints are intervals inside separate regions of a hidden
+ * ordering, so reductions in different regions never meet. Each thread adds
+ * an equal share of them. Both trees are checked to come out the same.
+ * <p>
+ * Usage: ConcurrentBenchmark [n] [regions] [threads]
+ *
+ * @author Joao
+ */
+public class ConcurrentBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int regions = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        int[][] constraints = Workloads.regions(n, regions, n, 32, 9);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        PQRTree locked = new PQRTree(n);
+        double lockedTime = run(pool, threads, constraints, c -> {
+            synchronized (locked) {
+                locked.reduce(c);
+            }
+        });
+
+        ConcurrentPQRTree concurrent = new ConcurrentPQRTree(n);
+        double concurrentTime = run(pool, threads, constraints, concurrent::reduce);
+        pool.shutdown();
+
+        if (locked.canonicalHash() != concurrent.toPQRTree().canonicalHash()) {
+            throw new IllegalStateException("The trees differ");
+        }
+
+        System.out.printf("n = %d, %d regions, %d threads, %d components%n", n, regions, threads,
+                concurrent.getComponentCount());
+        System.out.printf("locked PQRTree     %10.0f ms%n", lockedTime);
+        System.out.printf("ConcurrentPQRTree  %10.0f ms%n", concurrentTime);
+    }
+
+    /**
+     * Adds the constraints from the given number of threads, each taking
+     * every threads-th constraint, and returns the time taken in ms.
+     */
+    private static double run(ExecutorService pool, int threads, int[][] constraints, Consumer<int[]> reduce)
+            throws Exception {
+        long start = System.nanoTime();
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            futures.add(pool.submit(() -> {
+                for (int i = first; i < constraints.length; i += threads) {
+                    reduce.accept(constraints[i]);
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
@@ -0,0 +1,79 @@
+package Benchmark;
+
+import java.util.ArrayList;
+import pqrtree.PQRTree;
+import pqrtree.ReductionMode;
+
+/**
+ * Measures how long it takes to find the greedy maximal consistent subset of
+ * a noisy instance: the constraints taken in order, skipping each one that
+ * would create an R-node.
+ * <p>
+ * The greedy mode of the tree rolls back each rejected constraint in one
+ * pass. It is compared with rebuilding a tree from the accepted constraints
+ * for each candidate, which is quadratic, so it only runs on a prefix of the
+ * constraints, and its time for all of them is extrapolated from the prefix
+ * as a lower bound. Both must reject the same constraints of the prefix.
+ * <p>
+ * Usage: GreedyBenchmark [n] [noise] [prefix]
+ *
+ * @author Joao
+ */
+public class GreedyBenchmark {
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        double noise = (args.length > 1) ? Double.parseDouble(args[1]) : 0.01;
+        int prefix = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+
+        int[][] constraints = Workloads.noisy(n, n, 32, noise, 13);
+
+        PQRTree greedy = new PQRTree(n);
+        greedy.setMode(ReductionMode.GREEDY_PQ);
+        long start = System.nanoTime();
+        for (int[] c : constraints) {
+            greedy.reduce(c);
+        }
+        double greedyTime = (System.nanoTime() - start) / 1e6;
+        long[] rejected = greedy.getRejected();
+
+        PQRTree plain = new PQRTree(n);
+        start = System.nanoTime();
+        for (int[] c : constraints) {
+            plain.reduce(c);
+        }
+        double plainTime = (System.nanoTime() - start) / 1e6;
+
+        // Rebuild from the accepted constraints for each candidate of the
+        // prefix
+        ArrayList<int[]> accepted = new ArrayList<>();
+        int rebuildRejected = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < prefix; i++) {
+            PQRTree t = new PQRTree(n);
+            for (int[] c : accepted) {
+                t.reduce(c);
+            }
+            t.reduce(constraints[i]);
+            if (t.hasRNode()) {
+                if ((rebuildRejected >= rejected.length) || (rejected[rebuildRejected] != i)) {
+                    throw new IllegalStateException("Constraint " + i + " rejected only by the rebuild");
+                }
+                rebuildRejected++;
+            } else {
+                accepted.add(constraints[i]);
+            }
+        }
+        double rebuildTime = (System.nanoTime() - start) / 1e6;
+        if ((rebuildRejected < rejected.length) && (rejected[rebuildRejected] < prefix)) {
+            throw new IllegalStateException("Constraint " + rejected[rebuildRejected] + " rejected only by the greedy mode");
+        }
+
+        System.out.printf("n = %d, %d constraints, noise %.3f, %d rejected%n", n, constraints.length, noise,
+                rejected.length);
+        System.out.printf("greedy pass          %10.0f ms%n", greedyTime);
+        System.out.printf("plain reductions     %10.0f ms%n", plainTime);
+        System.out.printf("rebuild, %d first    %10.0f ms (over %.0f s for all)%n", prefix, rebuildTime,
+                rebuildTime * constraints.length / prefix / 1e3);
+    }
+}
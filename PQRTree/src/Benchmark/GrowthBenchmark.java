@@ -0,0 +1,78 @@
+package Benchmark;
+
+import pqrtree.PQRTree;
+
+/**
+ * Compares growing a tree from sparse element identifiers, creating each leaf
+ * when its element first appears in a constraint, with building it with all
+ * its leaves up front, and checks that every constraint still holds in the
+ * grown tree.
+ * <p>
+ * The first constraints given to a growing tree cover every leaf it has, so
+ * the leaves added afterwards must stay out of them. A small case of this is
+ * checked first.
+ * <p>
+ * Usage: GrowthBenchmark [n] [m] [max length]
+ *
+ * @author Joao
+ */
+public class GrowthBenchmark {
+
+    /**
+     * Spreads the elements over the identifiers.
+     */
+    private static final long STRIDE = 0x9E3779B97F4A7C15L;
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 20;
+        int m = (args.length > 1) ? Integer.parseInt(args[1]) : n;
+        int maxLength = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+
+        PQRTree small = new PQRTree(0);
+        small.reduce(new long[] {10, 20, 30});
+        small.reduce(new long[] {40, 10});
+        if (!small.isConsecutive(new int[] {small.getLabel(10), small.getLabel(20), small.getLabel(30)})) {
+            throw new IllegalStateException("A constraint on every leaf was lost: " + small);
+        }
+
+        int[][] constraints = Workloads.interval(n, m, maxLength, 13);
+        long[][] ids = new long[m][];
+        for (int i = 0; i < m; i++) {
+            ids[i] = new long[constraints[i].length];
+            for (int j = 0; j < ids[i].length; j++) {
+                ids[i][j] = STRIDE * (constraints[i][j] + 1);
+            }
+        }
+
+        long start = System.nanoTime();
+        PQRTree fixed = new PQRTree(n);
+        for (int[] c : constraints) {
+            fixed.reduce(c);
+        }
+        double build = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        PQRTree grown = new PQRTree(0);
+        for (long[] c : ids) {
+            grown.reduce(c);
+        }
+        double grow = (System.nanoTime() - start) / 1e6;
+
+        for (long[] c : ids) {
+            int[] labels = new int[c.length];
+            for (int j = 0; j < c.length; j++) {
+                labels[j] = grown.getLabel(c[j]);
+            }
+            if (!grown.isConsecutive(labels)) {
+                throw new IllegalStateException("The grown tree lost a constraint");
+            }
+        }
+        if (grown.hasRNode() != fixed.hasRNode()) {
+            throw new IllegalStateException("The grown tree differs from the fixed tree");
+        }
+
+        System.out.printf("n = %d, m = %d, %d elements seen%n", n, m, grown.size());
+        System.out.printf("fixed leaves  %10.1f ms%n", build);
+        System.out.printf("grown leaves  %10.1f ms%n", grow);
+    }
+}
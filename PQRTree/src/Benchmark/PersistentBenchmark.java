@@ -0,0 +1,79 @@
+package Benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import pqrtree.PQRTree;
+import pqrtree.PersistentPQRTree;
+
+/**
+ * Measures the memory and time of branching versions of a persistent tree,
+ * against copying the tree for each branch.
+ * <p>
+ * A base tree is built from an interval workload. Each branch then adds its
+ * own constraints to the base, one version per constraint: random windows of
+ * the frontier of the base, so every branch stays consistent. The branches
+ * are read in turn, which switches the nodes between them. The changes each
+ * version stores are compared with the heap of a copy of the tree.
+ * <p>
+ * Usage: PersistentBenchmark [n] [branches] [constraints per branch]
+ *
+ * @author Joao
+ */
+public class PersistentBenchmark {
+
+    /**
+     * Estimated bytes of one stored change: the node, the field, and its old
+     * and new values.
+     */
+    private static final int CHANGE_BYTES = 21;
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 18;
+        int branches = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int length = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+
+        PQRTree tree = new PQRTree(n);
+        for (int[] c : Workloads.interval(n, n, 32, 3)) {
+            tree.reduce(c);
+        }
+        long copyBytes = tree.stats().getHeapBytes();
+        PersistentPQRTree base = new PersistentPQRTree(tree);
+
+        int[] frontier = base.frontier();
+        Random random = new Random(5);
+
+        long start = System.nanoTime();
+        base.toPQRTree();
+        double copy = (System.nanoTime() - start) / 1e6;
+
+        PersistentPQRTree[] tips = new PersistentPQRTree[branches];
+        long changes = 0;
+        start = System.nanoTime();
+        for (int b = 0; b < branches; b++) {
+            PersistentPQRTree v = base;
+            for (int i = 0; i < length; i++) {
+                int from = random.nextInt(n - 32);
+                v = v.reduce(Arrays.copyOfRange(frontier, from, from + 2 + random.nextInt(31)));
+                changes += v.getChangeCount();
+            }
+            tips[b] = v;
+        }
+        double reduce = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        int consistent = 0;
+        for (int b = 0; b < branches; b++) {
+            tips[b].frontier();
+            consistent += tips[b].hasRNode() ? 0 : 1;
+        }
+        double read = (System.nanoTime() - start) / 1e6;
+
+        long versions = (long) branches * length;
+        System.out.printf("n = %d, %d branches of %d versions, %d consistent%n", n, branches,
+                length, consistent);
+        System.out.printf("copy of the tree     %12d bytes %10.1f ms%n", copyBytes, copy);
+        System.out.printf("version              %12d bytes %10.3f ms (%.1f changes)%n",
+                CHANGE_BYTES * changes / versions, reduce / versions, (double) changes / versions);
+        System.out.printf("switch and frontier  %12s       %10.1f ms per branch%n", "", read / branches);
+    }
+}
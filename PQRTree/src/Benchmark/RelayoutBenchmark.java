@@ -0,0 +1,65 @@
+package Benchmark;
+
+import pqrtree.PQRTree;
+
+/**
+ * Measures how relaying a tree out changes the speed of reductions and
+ * traversals.
+ * <p>
+ * A tree is built from an interval workload, which scatters its nodes
+ * over the heap. Then the constraints are reduced again, which walks the
+ * tree without changing it, and the tree is traversed by frontier() and
+ * toString(). Both are timed before and after relayout().
+ * <p>
+ * Usage: RelayoutBenchmark [n] [repetitions]
+ *
+ * @author Joao
+ */
+public class RelayoutBenchmark {
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+
+        int[][] constraints = Workloads.interval(n, n, 32, 7);
+        PQRTree tree = new PQRTree(n);
+        long start = System.nanoTime();
+        for (int[] c : constraints) {
+            tree.reduce(c);
+        }
+        System.out.printf("n = %d, built in %.0f ms, %s%n", n, (System.nanoTime() - start) / 1e6, tree.stats());
+
+        measure("scattered", tree, constraints, repetitions);
+
+        start = System.nanoTime();
+        tree.relayout();
+        System.out.printf("relayout in %.0f ms, %s%n", (System.nanoTime() - start) / 1e6, tree.stats());
+
+        measure("relaid", tree, constraints, repetitions);
+    }
+
+    /**
+     * Prints the best times of reducing the constraints again and of
+     * traversing the tree.
+     */
+    private static void measure(String name, PQRTree tree, int[][] constraints, int repetitions) {
+        double reduce = Double.MAX_VALUE;
+        double traverse = Double.MAX_VALUE;
+        long length = 0;
+        for (int r = 0; r < repetitions; r++) {
+            long start = System.nanoTime();
+            for (int[] c : constraints) {
+                tree.reduce(c);
+            }
+            long reduced = System.nanoTime();
+            length += tree.frontier().length + tree.toString().length();
+            long traversed = System.nanoTime();
+
+            reduce = Math.min(reduce, (reduced - start) / 1e6);
+            traverse = Math.min(traverse, (traversed - reduced) / 1e6);
+        }
+
+        System.out.printf("%-10s reduce %8.0f ms (%.0f constraints/s), traverse %8.0f ms [%d]%n", name, reduce,
+                constraints.length / (reduce / 1000), traverse, length);
+    }
+}
@@ -0,0 +1,231 @@
+package Benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import pqrtree.PQRTree;
+
+/**
+ * Checks that the cost of building and reading trees stays near-linear as the
+ * input grows.
+ * <p>
+ * For each workload (interval, laminar, noisy and genome-like), the number of
+ * elements is doubled until the total input size, the number of elements plus
+ * the sizes of all the constraints, reaches a limit. At each step it measures
+ * the time to reduce every constraint, the time to read the tree back
+ * (toString, frontier and basis), the heap estimated by the tree stats per
+ * element and the GC time, which is left out of both times. Each workload is
+ * run a few times at a small size first, so the JIT has compiled the hot paths
+ * before the sweep starts. Then it fits the scaling exponent of both times
+ * against the input size, by least squares on a log-log scale, over the steps
+ * long enough to be timed reliably. It also prints the peak RSS of the process.
+ * <p>
+ * The run fails, with exit status 1, if a fitted exponent or the memory per
+ * element of the largest step is above its threshold, so it can gate
+ * complexity regressions. Cache misses alone push the exponents of large trees
+ * to about 1.2, so the default threshold, 1.5, is meant to catch quadratic
+ * behavior rather than constant factors. A total size of 10^8 needs a heap of
+ * several GB.
+ * <p>
+ * Usage: ScalingBenchmark [max total size] [max exponent] [max bytes per
+ * element]
+ *
+ * @author Joao
+ */
+public class ScalingBenchmark {
+
+    /**
+     * Steps faster than this, in milliseconds, are left out of the fit.
+     */
+    private static final double MIN_FIT_TIME = 20;
+
+    /**
+     * The measures of one step of a sweep.
+     */
+    private static class Step {
+
+        private long size;
+        private double reduceMs;
+        private double readMs;
+        private double bytesPerElement;
+        private double gcMs;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long maxTotal = (args.length > 0) ? Long.parseLong(args[0]) : 10000000;
+        double maxExponent = (args.length > 1) ? Double.parseDouble(args[1]) : 1.5;
+        double maxBytes = (args.length > 2) ? Double.parseDouble(args[2]) : 1000;
+
+        String[] names = {"interval", "laminar", "noisy", "genome"};
+        boolean failed = false;
+
+        System.out.printf("%-9s %10s %12s %10s %10s %10s %8s%n",
+                "workload", "n", "total size", "reduce ms", "read ms", "bytes/elt", "gc ms");
+        for (int w = 0; w < names.length; w++) {
+            for (int i = 0; i < 5; i++) {
+                measure(1 << 14, workload(w, 1 << 14));
+            }
+
+            List<Step> steps = new ArrayList<>();
+            for (int n = 1 << 10; ; n *= 2) {
+                int[][] constraints = workload(w, n);
+                long size = n;
+                for (int[] c : constraints) {
+                    size += c.length;
+                }
+                if (size > maxTotal) {
+                    break;
+                }
+
+                Step step = measure(n, constraints);
+                step.size = size;
+                steps.add(step);
+                System.out.printf("%-9s %10d %12d %10.1f %10.1f %10.1f %8.1f%n",
+                        names[w], n, size, step.reduceMs, step.readMs, step.bytesPerElement, step.gcMs);
+            }
+
+            double reduceExponent = fit(steps, true);
+            double readExponent = fit(steps, false);
+            double bytes = steps.isEmpty() ? 0 : steps.get(steps.size() - 1).bytesPerElement;
+            System.out.printf("%-9s exponent reduce %.2f, read %.2f, %.1f bytes/element%n",
+                    names[w], reduceExponent, readExponent, bytes);
+
+            if ((reduceExponent > maxExponent) || (readExponent > maxExponent)) {
+                System.out.printf("FAIL %s: exponent above %.2f%n", names[w], maxExponent);
+                failed = true;
+            }
+            if (bytes > maxBytes) {
+                System.out.printf("FAIL %s: memory per element above %.0f bytes%n", names[w], maxBytes);
+                failed = true;
+            }
+        }
+
+        System.out.printf("peak RSS %s%n", peakRss());
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Generates a workload with about 16 constraint elements per element.
+     */
+    private static int[][] workload(int w, int n) {
+        switch (w) {
+            case 0:
+                return Workloads.interval(n, n, 32, n);
+            case 1:
+                return Workloads.laminar(n, n);
+            case 2:
+                return Workloads.noisy(n, n, 32, 0.01, n);
+            default:
+                return Workloads.genome(n, 8, 16, 0.02, n);
+        }
+    }
+
+    /**
+     * Builds the tree of a workload and reads it back, measuring time, memory
+     * and GC time.
+     */
+    private static Step measure(int n, int[][] constraints) {
+        Step step = new Step();
+
+        collect();
+        long gcBefore = gcTime();
+
+        long start = System.nanoTime();
+        PQRTree tree = new PQRTree(n);
+        for (int[] c : constraints) {
+            tree.reduce(c);
+        }
+        long reduced = System.nanoTime();
+        long gcReduced = gcTime();
+        int length = tree.toString().length() + tree.frontier().length + tree.basis().length;
+        long read = System.nanoTime();
+        long gcRead = gcTime();
+
+        // GC pauses grow with the heap, not with the algorithm, so they are
+        // reported apart
+        step.reduceMs = Math.max(0, (reduced - start) / 1e6 - (gcReduced - gcBefore));
+        step.readMs = Math.max(0, (read - reduced) / 1e6 - (gcRead - gcReduced));
+        step.gcMs = gcRead - gcBefore;
+        step.bytesPerElement = (double) tree.stats().getHeapBytes() / n;
+
+        if (length < 0) {
+            throw new IllegalStateException();
+        }
+        return step;
+    }
+
+    /**
+     * Fits t = a * size^k by least squares on log t and log size, over the
+     * steps that took long enough, and returns k.
+     */
+    private static double fit(List<Step> steps, boolean reduce) {
+        double sx = 0;
+        double sy = 0;
+        double sxx = 0;
+        double sxy = 0;
+        int k = 0;
+        for (Step step : steps) {
+            double t = reduce ? step.reduceMs : step.readMs;
+            if (t < MIN_FIT_TIME) {
+                continue;
+            }
+            double x = Math.log(step.size);
+            double y = Math.log(t);
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+            k++;
+        }
+        if (k < 2) {
+            return 0;
+        }
+        return (k * sxy - sx * sy) / (k * sxx - sx * sx);
+    }
+
+    private static void collect() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+    }
+
+    /**
+     * Returns the total time spent in garbage collection so far, in
+     * milliseconds.
+     */
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Returns the peak resident set size of the process, as reported by Linux,
+     * or "unknown" elsewhere.
+     */
+    private static String peakRss() throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return "unknown";
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(status))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return line.substring(6).trim();
+                }
+            }
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,73 @@
+package Benchmark;
+
+import java.util.Arrays;
+
+import pqrtree.ConstraintScheduler;
+import pqrtree.ConstraintScheduler.Strategy;
+import pqrtree.PQRTree;
+
+/**
+ * Compares the constraint scheduling strategies on laminar, interval and noisy
+ * workloads. For each workload and strategy, it prints the median time to add
+ * the whole batch to a universal tree. It checks that every strategy agrees
+ * on whether the tree has an R-node. Without R-nodes, it also checks that
+ * the trees are equivalent, by their canonical hashes, and that their
+ * frontiers satisfy the constraints. With R-nodes, the children of the R-nodes
+ * depend on the order, so the trees are not compared.
+ * <p>
+ * Usage: SchedulerBenchmark [n] [repetitions]
+ *
+ * @author Joao
+ */
+public class SchedulerBenchmark {
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        String[] names = {"laminar", "interval", "noisy"};
+        int[][][] workloads = {
+            Workloads.laminar(n, 1),
+            Workloads.interval(n, n, 64, 2),
+            Workloads.noisy(n, n, 64, 0.01, 3)
+        };
+
+        System.out.printf("%-10s %-18s %10s %10s%n", "workload", "strategy", "median ms", "R-node");
+        for (int w = 0; w < workloads.length; w++) {
+            int[][] constraints = workloads[w];
+            Boolean expectedR = null;
+            long expectedHash = 0;
+
+            for (Strategy strategy : Strategy.values()) {
+                double[] times = new double[repetitions];
+                PQRTree tree = null;
+
+                // Warm up once, then measure
+                for (int rep = -1; rep < repetitions; rep++) {
+                    tree = new PQRTree(n);
+                    long start = System.nanoTime();
+                    ConstraintScheduler.reduceAll(tree, constraints, strategy);
+                    long end = System.nanoTime();
+                    if (rep >= 0) {
+                        times[rep] = (end - start) / 1e6;
+                    }
+                }
+                Arrays.sort(times);
+
+                // Every order must give the same answer
+                long hash = tree.hasRNode() ? 0 : tree.canonicalHash();
+                if (expectedR == null) {
+                    expectedR = tree.hasRNode();
+                    expectedHash = hash;
+                }
+                if ((tree.hasRNode() != expectedR) || (hash != expectedHash)
+                        || (!tree.hasRNode() && !Workloads.isValid(tree.frontier(), constraints))) {
+                    throw new IllegalStateException(names[w] + "/" + strategy + " gave a different tree");
+                }
+
+                System.out.printf("%-10s %-18s %10.1f %10s%n",
+                        names[w], strategy, times[repetitions / 2], tree.hasRNode());
+            }
+        }
+    }
+}
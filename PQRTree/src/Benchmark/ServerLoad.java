@@ -0,0 +1,152 @@
+package Benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import PQRServer.PQRClient;
+import PQRServer.PQRServer;
+
+/**
+ * Load generator for PQRServer. Several connections share one tree, each
+ * keeping a fixed number of requests in flight, for a fixed time. Writes add
+ * random intervals of a hidden ordering and reads test other intervals with
+ * isConsecutive. It prints the throughput and the latency percentiles of
+ * reads and writes.
+ * <p>
+ * If no port is given, a server is started in this process.
+ * <p>
+ * Usage: ServerLoad [connections] [depth] [seconds] [read %] [n] [port]
+ *
+ * @author Joao
+ */
+public class ServerLoad {
+
+    /**
+     * Latencies of one kind of request, in nanoseconds.
+     */
+    private static class Latencies {
+
+        private long[] values = new long[1 << 16];
+        private int size = 0;
+
+        synchronized void add(long nanos) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, 2 * this.size);
+            }
+            this.values[this.size++] = nanos;
+        }
+
+        synchronized void addAll(Latencies other) {
+            for (int i = 0; i < other.size; i++) {
+                this.add(other.values[i]);
+            }
+        }
+
+        void print(String name, double seconds) {
+            long[] sorted = Arrays.copyOf(this.values, this.size);
+            Arrays.sort(sorted);
+            System.out.printf("%-6s %10d %12.0f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                    name, sorted.length, sorted.length / seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), percentile(sorted, 1.0));
+        }
+
+        /**
+         * Returns a percentile of sorted latencies, in microseconds.
+         */
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+            return sorted[Math.max(i, 0)] / 1e3;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int depth = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        double seconds = (args.length > 2) ? Double.parseDouble(args[2]) : 10;
+        int readPercent = (args.length > 3) ? Integer.parseInt(args[3]) : 90;
+        int n = (args.length > 4) ? Integer.parseInt(args[4]) : 100000;
+        int port = (args.length > 5) ? Integer.parseInt(args[5]) : 0;
+
+        PQRServer server = null;
+        if (port == 0) {
+            server = new PQRServer(0, Runtime.getRuntime().availableProcessors());
+            port = server.getPort();
+        }
+
+        // Writes and reads are intervals of the same hidden ordering
+        int[][] intervals = Workloads.interval(n, 1 << 18, 32, 1);
+
+        try (PQRClient setup = new PQRClient(port)) {
+            setup.create("load", n).join();
+        }
+
+        Latencies reads = new Latencies();
+        Latencies writes = new Latencies();
+        Thread[] threads = new Thread[connections];
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        int finalPort = port;
+
+        for (int t = 0; t < connections; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    run(finalPort, depth, deadline, readPercent, intervals, seed, reads, writes);
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.printf("%d connections, %d requests in flight each, %.0f s, %d%% reads, n = %d%n",
+                connections, depth, seconds, readPercent, n);
+        System.out.printf("%-6s %10s %12s %9s %9s %9s %9s %9s%n",
+                "kind", "requests", "requests/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        reads.print("read", seconds);
+        writes.print("write", seconds);
+        Latencies all = new Latencies();
+        all.addAll(reads);
+        all.addAll(writes);
+        all.print("all", seconds);
+
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Sends requests on one connection until the deadline, keeping depth of
+     * them in flight.
+     */
+    private static void run(int port, int depth, long deadline, int readPercent, int[][] intervals,
+            int seed, Latencies reads, Latencies writes) throws IOException, InterruptedException {
+        Random random = new Random(seed);
+        Semaphore inFlight = new Semaphore(depth);
+
+        try (PQRClient client = new PQRClient(port)) {
+            while (System.nanoTime() < deadline) {
+                inFlight.acquire();
+                int[] c = intervals[random.nextInt(intervals.length)];
+                boolean read = random.nextInt(100) < readPercent;
+
+                long start = System.nanoTime();
+                CompletableFuture<Boolean> f = read ? client.isConsecutive("load", c) : client.reduce("load", c);
+                f.whenComplete((result, error) -> {
+                    (read ? reads : writes).add(System.nanoTime() - start);
+                    inFlight.release();
+                });
+            }
+            inFlight.acquire(depth);
+        }
+    }
+}
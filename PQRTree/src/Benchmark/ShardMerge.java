@@ -0,0 +1,174 @@
+package Benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import CLIReduce.IngestPipeline;
+import pqrtree.PQRTree;
+
+/**
+ * Builds a tree with a local map-reduce over worker processes, and compares it
+ * with building it in one process.
+ * <p>
+ * The constraints are split into shards, written to files. Each shard is
+ * reduced by a separate JVM, which writes back the basis of its tree. The
+ * bases are then read into trees and merged pairwise, in rounds, on a thread
+ * pool. The merged tree is checked against the tree built from all the
+ * constraints.
+ * <p>
+ * Usage: ShardMerge [n] [m] [shards] [workers]
+ *
+ * @author Joao
+ */
+public class ShardMerge {
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length > 0) && args[0].equals("worker")) {
+            worker(Integer.parseInt(args[1]), new File(args[2]), new File(args[3]));
+            return;
+        }
+
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int m = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+        int shards = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        int workers = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        int[][] constraints = Workloads.interval(n, m, 32, 5);
+
+        // One process, every constraint
+        long start = System.nanoTime();
+        PQRTree expected = new PQRTree(n);
+        for (int[] c : constraints) {
+            expected.reduce(c);
+        }
+        double single = (System.nanoTime() - start) / 1e6;
+
+        Path dir = Files.createTempDirectory("pqrtree-shards");
+        try {
+            File[] inputs = new File[shards];
+            File[] outputs = new File[shards];
+            for (int s = 0; s < shards; s++) {
+                inputs[s] = dir.resolve("shard" + s + ".txt").toFile();
+                outputs[s] = dir.resolve("basis" + s + ".txt").toFile();
+                write(constraints, (int) ((long) s * m / shards), (int) ((long) (s + 1) * m / shards), inputs[s]);
+            }
+
+            // Map: one worker process per shard
+            start = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            List<Future<Integer>> exits = new ArrayList<>();
+            for (int s = 0; s < shards; s++) {
+                ProcessBuilder builder = new ProcessBuilder(
+                        new File(System.getProperty("java.home"), "bin/java").getPath(),
+                        "-cp", System.getProperty("java.class.path"),
+                        ShardMerge.class.getName(), "worker", Integer.toString(n),
+                        inputs[s].getPath(), outputs[s].getPath());
+                builder.inheritIO();
+                exits.add(pool.submit(() -> builder.start().waitFor()));
+            }
+            for (Future<Integer> exit : exits) {
+                if (exit.get() != 0) {
+                    throw new IllegalStateException("A worker failed");
+                }
+            }
+            double map = (System.nanoTime() - start) / 1e6;
+
+            // Reduce: read the bases and merge them pairwise
+            start = System.nanoTime();
+            List<Future<PQRTree>> read = new ArrayList<>();
+            for (int s = 0; s < shards; s++) {
+                File output = outputs[s];
+                read.add(pool.submit(() -> read(n, output)));
+            }
+            PQRTree[] trees = new PQRTree[shards];
+            for (int s = 0; s < shards; s++) {
+                trees[s] = read.get(s).get();
+            }
+            for (int step = 1; step < shards; step *= 2) {
+                List<Future<?>> round = new ArrayList<>();
+                for (int s = 0; s + step < shards; s += 2 * step) {
+                    PQRTree a = trees[s];
+                    PQRTree b = trees[s + step];
+                    round.add(pool.submit(() -> a.merge(b)));
+                }
+                for (Future<?> f : round) {
+                    f.get();
+                }
+            }
+            PQRTree merged = trees[0];
+            double reduce = (System.nanoTime() - start) / 1e6;
+            pool.shutdown();
+
+            // Both trees must represent the same orderings
+            boolean same = (merged.hasRNode() == expected.hasRNode())
+                    && (merged.stats().getPCount() == expected.stats().getPCount())
+                    && (merged.stats().getQCount() == expected.stats().getQCount())
+                    && (merged.hasRNode() || Workloads.isValid(merged.frontier(), constraints));
+            if (!same) {
+                throw new IllegalStateException("The merged tree differs from the single tree");
+            }
+
+            System.out.printf("n = %d, m = %d, %d shards, %d workers%n", n, m, shards, workers);
+            System.out.printf("single process %10.0f ms%n", single);
+            System.out.printf("map            %10.0f ms%n", map);
+            System.out.printf("reduce         %10.0f ms%n", reduce);
+            System.out.printf("map-reduce     %10.0f ms%n", map + reduce);
+        } finally {
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Builds the tree of one shard and writes its basis. Runs in a worker
+     * process.
+     */
+    private static void worker(int n, File input, File output) throws IOException, InterruptedException {
+        PQRTree tree = new PQRTree(n);
+        try (BufferedReader in = Files.newBufferedReader(input.toPath(), StandardCharsets.US_ASCII)) {
+            new IngestPipeline(n, Math.max(1, Runtime.getRuntime().availableProcessors() - 1)).run(in, tree);
+        }
+        int[][] basis = tree.basis();
+        write(basis, 0, basis.length, output);
+    }
+
+    /**
+     * Reads a basis into a new tree.
+     */
+    private static PQRTree read(int n, File input) throws IOException, InterruptedException {
+        PQRTree tree = new PQRTree(n);
+        try (BufferedReader in = Files.newBufferedReader(input.toPath(), StandardCharsets.US_ASCII)) {
+            new IngestPipeline(n, 1).run(in, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Writes constraints from to to - 1, one per line.
+     */
+    private static void write(int[][] constraints, int from, int to, File output) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(output.toPath(), StandardCharsets.US_ASCII)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = from; i < to; i++) {
+                line.setLength(0);
+                for (int j = 0; j < constraints[i].length; j++) {
+                    line.append((j > 0) ? " " : "").append(constraints[i][j]);
+                }
+                out.write(line.toString());
+                out.newLine();
+            }
+        }
+    }
+}
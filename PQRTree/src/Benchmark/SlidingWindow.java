@@ -0,0 +1,61 @@
+package Benchmark;
+
+import pqrtree.DynamicPQRTree;
+import pqrtree.PQRTree;
+
+/**
+ * Compares keeping the tree of a sliding window of constraints up to date by
+ * removing the expired ones with rebuilding it from the window.
+ * <p>
+ * Constraints arrive from an interval workload. Once the window is full, each
+ * new constraint expires the oldest one, which is removed from a
+ * DynamicPQRTree. The time per update is compared with the time to rebuild
+ * the tree from every constraint in the window.
+ * <p>
+ * Usage: SlidingWindow [n] [window] [updates] [max length]
+ *
+ * @author Joao
+ */
+public class SlidingWindow {
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int window = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        int updates = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+        int maxLength = (args.length > 3) ? Integer.parseInt(args[3]) : 32;
+
+        int[][] constraints = Workloads.interval(n, window + updates, maxLength, 11);
+        DynamicPQRTree dynamic = new DynamicPQRTree(n);
+        long[] ids = new long[constraints.length];
+        for (int i = 0; i < window; i++) {
+            ids[i] = dynamic.add(constraints[i]);
+        }
+
+        long componentSizes = 0;
+        long start = System.nanoTime();
+        for (int i = window; i < constraints.length; i++) {
+            componentSizes += dynamic.getComponentSize(ids[i - window]);
+            dynamic.remove(ids[i - window]);
+            ids[i] = dynamic.add(constraints[i]);
+        }
+        double perUpdate = (System.nanoTime() - start) / 1e3 / updates;
+
+        // Rebuild the last window from scratch
+        start = System.nanoTime();
+        PQRTree rebuilt = new PQRTree(n);
+        for (int i = constraints.length - window; i < constraints.length; i++) {
+            rebuilt.reduce(constraints[i]);
+        }
+        double rebuild = (System.nanoTime() - start) / 1e6;
+
+        if ((rebuilt.stats().getPCount() != dynamic.getTree().stats().getPCount())
+                || (rebuilt.stats().getQCount() != dynamic.getTree().stats().getQCount())) {
+            throw new IllegalStateException("The dynamic tree differs from the rebuilt tree");
+        }
+
+        System.out.printf("n = %d, window = %d, %d updates, mean component %.1f constraints%n", n, window, updates,
+                (double) componentSizes / updates);
+        System.out.printf("update (remove + add) %10.1f us%n", perUpdate);
+        System.out.printf("rebuild of the window %10.1f ms%n", rebuild);
+    }
+}
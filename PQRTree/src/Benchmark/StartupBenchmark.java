@@ -0,0 +1,156 @@
+package Benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the startup of CLIReduce: the time from launching a process on a
+ * small input to its first line of output, and to its exit.
+ * <p>
+ * The plain JVM is compared with the launch profile of bin/cli-reduce (only
+ * the quick compiler and the serial collector) with and without the AppCDS
+ * archive of "ant cds-archive", and with the native executable of
+ * "ant native-image" if it was built. Then many small files are reduced by
+ * one process in multi-file mode, against one process per file. Each time is
+ * the median of the runs.
+ * <p>
+ * Usage: StartupBenchmark [dist directory] [runs] [files]
+ *
+ * @author Joao
+ */
+public class StartupBenchmark {
+
+    private static final String MAIN = "CLIReduce.CLIReduce";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File dist = new File((args.length > 0) ? args[0] : "dist");
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        int files = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String jar = new File(dist, "PQRTree.jar").getPath();
+        File archive = new File(dist, "CLIReduce.jsa");
+        File executable = new File(dist, "CLIReduce");
+        if (!new File(jar).isFile()) {
+            System.err.println("No " + jar + ": run \"ant jar\" first");
+            System.exit(1);
+        }
+
+        // A small instance, as pipelines give
+        int n = 50;
+        StringBuilder sb = new StringBuilder().append(n).append('\n');
+        for (int[] c : Workloads.interval(n, 20, 8, 17)) {
+            for (int e : c) {
+                sb.append(e).append(' ');
+            }
+            sb.append('\n');
+        }
+        byte[] input = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        System.out.printf("%-24s %12s %12s%n", "", "first output", "exit");
+        measure("JVM", runs, input, java, "-cp", jar, MAIN);
+        measure("JVM, short-run profile", runs, input, java, "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-cp",
+                jar, MAIN);
+        if (archive.isFile()) {
+            measure("JVM, profile and AppCDS", runs, input, java, "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC",
+                    "-XX:SharedArchiveFile=" + archive.getPath(), "-cp", jar, MAIN);
+        } else {
+            System.out.println("No " + archive + ": run \"ant cds-archive\" to measure AppCDS");
+        }
+        if (executable.canExecute()) {
+            measure("native executable", runs, input, executable.getPath());
+        } else {
+            System.out.println("No " + executable + ": run \"ant native-image\" to measure it");
+        }
+
+        // Many files, in one process or one process each
+        File dir = Files.createTempDirectory("startup").toFile();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            File f = new File(dir, i + ".txt");
+            Files.write(f.toPath(), input);
+            names.add(f.getPath());
+        }
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC"));
+        if (archive.isFile()) {
+            command.add("-XX:SharedArchiveFile=" + archive.getPath());
+        }
+        command.addAll(Arrays.asList("-cp", jar, MAIN));
+
+        long start = System.nanoTime();
+        for (String name : names) {
+            List<String> single = new ArrayList<>(command);
+            single.add(name);
+            run(single, null);
+        }
+        double separate = (System.nanoTime() - start) / 1e6 / files;
+
+        command.addAll(names);
+        start = System.nanoTime();
+        run(command, null);
+        double together = (System.nanoTime() - start) / 1e6 / files;
+
+        for (String name : names) {
+            new File(name).delete();
+        }
+        dir.delete();
+
+        System.out.printf("%d files, one process each %8.1f ms per file%n", files, separate);
+        System.out.printf("%d files, multi-file mode  %8.1f ms per file%n", files, together);
+    }
+
+    /**
+     * Runs a command many times and prints the median times to its first line
+     * of output and to its exit.
+     */
+    private static void measure(String name, int runs, byte[] input, String... command)
+            throws IOException, InterruptedException {
+        double[] first = new double[runs];
+        double[] exit = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            double[] t = run(Arrays.asList(command), input);
+            first[i] = t[0];
+            exit[i] = t[1];
+        }
+        Arrays.sort(first);
+        Arrays.sort(exit);
+        System.out.printf("%-24s %9.1f ms %9.1f ms%n", name, first[runs / 2], exit[runs / 2]);
+    }
+
+    /**
+     * Runs a command, writing the input to it, and returns the times in ms to
+     * its first line of output and to its exit.
+     */
+    private static double[] run(List<String> command, byte[] input) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process p = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (OutputStream out = p.getOutputStream()) {
+            if (input != null) {
+                out.write(input);
+            }
+        }
+
+        double first = -1;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            if (in.readLine() != null) {
+                first = (System.nanoTime() - start) / 1e6;
+            }
+            while (in.readLine() != null) {
+                // Drain the output
+            }
+        }
+        if (p.waitFor() != 0) {
+            throw new IllegalStateException("Command failed: " + command);
+        }
+        return new double[] {first, (System.nanoTime() - start) / 1e6};
+    }
+}
@@ -0,0 +1,249 @@
+package Benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded generators of C1P instances for the benchmarks. All of them build
+ * the constraints over a hidden random ordering of the elements, so that the
+ * instances have a known valid ordering unless noise is added.
+ *
+ * @author Joao
+ */
+public class Workloads {
+
+    private Workloads() {
+        super();
+    }
+
+    /**
+     * Returns a random permutation of 0 to n - 1.
+     */
+    static int[] permutation(int n, Random random) {
+        int[] p = new int[n];
+        for (int i = 0; i < n; i++) {
+            p[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = p[i];
+            p[i] = p[j];
+            p[j] = tmp;
+        }
+        return p;
+    }
+
+    /**
+     * Returns the elements at positions from to to - 1 of an ordering.
+     */
+    static int[] slice(int[] order, int from, int to) {
+        int[] c = new int[to - from];
+        System.arraycopy(order, from, c, 0, to - from);
+        return c;
+    }
+
+    /**
+     * Random intervals of a hidden ordering. The instance has the
+     * consecutive-ones property.
+     *
+     * @param n The number of elements.
+     * @param m The number of constraints.
+     * @param maxLength The maximum length of a constraint (at least 2).
+     * @param seed The random seed.
+     * @return The constraints.
+     */
+    public static int[][] interval(int n, int m, int maxLength, long seed) {
+        Random random = new Random(seed);
+        int[] order = permutation(n, random);
+
+        int[][] constraints = new int[m][];
+        for (int i = 0; i < m; i++) {
+            int length = 2 + random.nextInt(Math.min(maxLength, n) - 1);
+            int from = random.nextInt(n - length + 1);
+            constraints[i] = slice(order, from, from + length);
+        }
+        return constraints;
+    }
+
+    /**
+     * Random intervals of a hidden ordering, each one inside one of a number
+     * of equal regions of it, so the constraints of different regions never
+     * share elements. The instance has the consecutive-ones property.
+     *
+     * @param n The number of elements.
+     * @param regions The number of regions (at most n / 2).
+     * @param m The number of constraints.
+     * @param maxLength The maximum length of a constraint (at least 2).
+     * @param seed The random seed.
+     * @return The constraints.
+     */
+    public static int[][] regions(int n, int regions, int m, int maxLength, long seed) {
+        Random random = new Random(seed);
+        int[] order = permutation(n, random);
+        int size = n / regions;
+
+        int[][] constraints = new int[m][];
+        for (int i = 0; i < m; i++) {
+            int length = 2 + random.nextInt(Math.min(maxLength, size) - 1);
+            int from = size * random.nextInt(regions) + random.nextInt(size - length + 1);
+            constraints[i] = slice(order, from, from + length);
+        }
+        return constraints;
+    }
+
+    /**
+     * A laminar family: intervals of a hidden ordering that are either nested
+     * or disjoint, built by splitting the ordering recursively into 2 to 4
+     * parts. The constraints are shuffled.
+     *
+     * @param n The number of elements.
+     * @param seed The random seed.
+     * @return The constraints.
+     */
+    public static int[][] laminar(int n, long seed) {
+        Random random = new Random(seed);
+        int[] order = permutation(n, random);
+
+        List<int[]> constraints = new ArrayList<>();
+        LinkedList<int[]> ranges = new LinkedList<>();
+        ranges.push(new int[]{0, n});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int length = range[1] - range[0];
+            if (length < 2) {
+                continue;
+            }
+            if (length < n) {
+                constraints.add(slice(order, range[0], range[1]));
+            }
+
+            int parts = Math.min(length, 2 + random.nextInt(3));
+            int from = range[0];
+            for (int k = 1; k <= parts; k++) {
+                int to = (k == parts) ? range[1] : from + 1 + random.nextInt(range[1] - from - (parts - k));
+                ranges.push(new int[]{from, to});
+                from = to;
+            }
+        }
+
+        int[][] result = constraints.toArray(new int[constraints.size()][]);
+        for (int i = result.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int[] tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return result;
+    }
+
+    /**
+     * Random intervals of a hidden ordering, with a fraction of the
+     * constraints replaced by random sets. Usually has no valid ordering, so
+     * the tree gets R-nodes.
+     *
+     * @param n The number of elements.
+     * @param m The number of constraints.
+     * @param maxLength The maximum length of a constraint (at least 2).
+     * @param noise The fraction of random constraints, between 0 and 1.
+     * @param seed The random seed.
+     * @return The constraints.
+     */
+    public static int[][] noisy(int n, int m, int maxLength, double noise, long seed) {
+        int[][] constraints = interval(n, m, maxLength, seed);
+        Random random = new Random(~seed);
+
+        for (int i = 0; i < m; i++) {
+            if (random.nextDouble() < noise) {
+                int length = constraints[i].length;
+                // Random distinct elements
+                int[] c = new int[length];
+                HashSet<Integer> chosen = new HashSet<>();
+                for (int k = 0; k < length; k++) {
+                    int x = random.nextInt(n);
+                    while (!chosen.add(x)) {
+                        x = random.nextInt(n);
+                    }
+                    c[k] = x;
+                }
+                constraints[i] = c;
+            }
+        }
+        return constraints;
+    }
+
+    /**
+     * A physical mapping instance: clones covering a hidden ordering of
+     * markers, each clone being an interval of the ordering. Clone lengths are
+     * spread around the mean, and the clones are placed so that every marker
+     * is covered about coverage times. A fraction of the clones are chimeric:
+     * two intervals from distant places of the ordering joined together, as
+     * when two fragments are cloned as one. Any chimera usually makes the
+     * instance infeasible.
+     *
+     * @param n The number of markers.
+     * @param coverage The average number of clones covering each marker.
+     * @param meanLength The average number of markers in a clone (at least
+     *        2).
+     * @param chimeric The fraction of chimeric clones, between 0 and 1.
+     * @param seed The random seed.
+     * @return The constraints.
+     */
+    public static int[][] genome(int n, double coverage, int meanLength, double chimeric, long seed) {
+        Random random = new Random(seed);
+        int[] order = permutation(n, random);
+
+        int m = (int) Math.max(1, coverage * n / meanLength);
+        int[][] constraints = new int[m][];
+        for (int i = 0; i < m; i++) {
+            // Log-normal lengths, as fragment sizes usually are
+            int length = (int) Math.round(meanLength * Math.exp(0.5 * random.nextGaussian() - 0.125));
+            length = Math.max(2, Math.min(length, n));
+            int from = random.nextInt(n - length + 1);
+
+            if ((random.nextDouble() < chimeric) && (length >= 4) && (n >= 2 * length)) {
+                // Two halves from unrelated places, not overlapping
+                int half = length / 2;
+                int other = random.nextInt(n - half + 1);
+                while ((other < from + length) && (other + half > from)) {
+                    other = random.nextInt(n - half + 1);
+                }
+                int[] c = new int[length];
+                System.arraycopy(order, from, c, 0, length - half);
+                System.arraycopy(order, other, c, length - half, half);
+                constraints[i] = c;
+            } else {
+                constraints[i] = slice(order, from, from + length);
+            }
+        }
+        return constraints;
+    }
+
+    /**
+     * Tests whether every constraint is consecutive in an ordering.
+     *
+     * @param order An ordering of the elements.
+     * @param constraints The constraints.
+     * @return true if the ordering is valid.
+     */
+    public static boolean isValid(int[] order, int[][] constraints) {
+        int[] position = new int[order.length];
+        for (int k = 0; k < order.length; k++) {
+            position[order[k]] = k;
+        }
+        for (int[] c : constraints) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int x : c) {
+                min = Math.min(min, position[x]);
+                max = Math.max(max, position[x]);
+            }
+            if ((c.length > 0) && (max - min + 1 != c.length)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,7 +3,8 @@ package CLIReduce;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Scanner;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import pqrtree.PQRTree;
 
@@ -13,6 +14,8 @@ import pqrtree.PQRTree;
  * The first line of the input should be an integer setting the number of
  * elements to be considered. After that, each line adds a constraint to the
  * PQR-Tree, with the elements separated by spaces. The tree is updated and
+ * printed after each line. A line with an invalid element is reported and
+ * ignored. The input ends with an empty line or at its end.
  * 
  * Example (input lines are preceded with a '>'):
  * > 6
@@ -23,42 +26,59 @@ import pqrtree.PQRTree;
  * (5 [(3 4) 2 (0 1)])
  * >
  * 
+ * With file names as arguments, each file is read as a separate input, all
+ * in the same process, so the startup of the JVM is paid once for all of
+ * them. When there are many files, the output of each one is preceded by a
+ * line "==&gt; name &lt;==". A file that cannot be read is reported and skipped,
+ * and the exit status is then 1.
+ * 
  * @author Joao
  */
 public class CLIReduce {
 
-    public static void main(String[] args) throws IOException {
-        Scanner scanner = new Scanner(System.in);
-        int tmpRestriction[] = null;
-
-        // Create initial universal tree
-        int elementNumber = scanner.nextInt();
-        PQRTree pqrtree = new PQRTree(elementNumber);
-        System.out.println(pqrtree.toString());
-
-        // Read restrictions until empty line
-        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-        String line = in.readLine();
-        while (!line.isEmpty()) {
-            Scanner scanLine = new Scanner(line);
-            int restriction[] = null;
-            int i = 0;
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            // A single reader for the whole input: a second one would lose what
+            // the first buffered
+            reduce(new BufferedReader(new InputStreamReader(System.in)));
+            return;
+        }
 
-            tmpRestriction = new int[elementNumber];
-            while (scanLine.hasNextInt()) {
-                tmpRestriction[i++] = scanLine.nextInt();
+        int status = 0;
+        for (String name : args) {
+            if (args.length > 1) {
+                System.out.println("==> " + name + " <==");
             }
-
-            restriction = new int[i];
-            for (int j = 0; j < i; j++) {
-                restriction[j] = tmpRestriction[j];
+            try (BufferedReader in = Files.newBufferedReader(Paths.get(name))) {
+                reduce(in);
+            } catch (IOException | RuntimeException e) {
+                System.err.println(name + ": " + e);
+                status = 1;
             }
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
 
-            pqrtree.reduce(restriction);
-            System.out.println(pqrtree.toString());
-
-            line = in.readLine();
+    /**
+     * Builds a tree from one input and prints it after each constraint.
+     */
+    private static void reduce(BufferedReader in) throws IOException, InterruptedException {
+        // Create initial universal tree
+        String first = in.readLine();
+        if (first == null) {
+            return;
         }
+        int elementNumber = Integer.parseInt(first.trim());
+        PQRTree pqrtree = new PQRTree(elementNumber);
+        System.out.println(pqrtree.toString());
+
+        // Read restrictions until empty line, parsing them on the other cores
+        int parsers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        IngestPipeline pipeline = new IngestPipeline(elementNumber, parsers);
+        pipeline.setOutput(PQRTree::toString, System.out);
+        pipeline.run(in, pqrtree);
     }
-    
+
 }
@@ -0,0 +1,441 @@
+package CLIReduce;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import pqrtree.PQRTree;
+
+/**
+ * Reads constraint lines and adds them to a tree, spreading the parsing over
+ * several threads.
+ * <p>
+ * Each line holds the labels of one constraint, separated by spaces. The
+ * input ends at its end or at an empty line. Lines are read in chunks, and
+ * each chunk is parsed, validated and stripped of repeated labels by a pool
+ * of parser threads into CSR form. The parsed chunks are handed, in input
+ * order, through a bounded queue to a single reducer thread, which adds the
+ * constraints to the tree strictly in input order. A line with an invalid
+ * label is rejected as a whole and adds nothing.
+ * <p>
+ * Optionally, a text is rendered from the tree after each constraint, on the
+ * reducer thread, and written by an output thread, so printing does not hold
+ * up the reductions.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * IngestPipeline pipeline = new IngestPipeline(n, threads);
+ * pipeline.setOutput(PQRTree::toString, System.out);
+ * pipeline.run(reader, tree);
+ * </pre>
+ *
+ * @author Joao
+ */
+public class IngestPipeline {
+
+    /**
+     * The default number of lines parsed together.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * The chunk telling the reducer that the input ended.
+     */
+    private static final Chunk END = new Chunk(-1, new String[0], 0);
+    /**
+     * The text telling the output thread that the input ended.
+     */
+    private static final String END_OF_OUTPUT = new String();
+
+    /**
+     * The number of elements of the tree. Labels must be below it.
+     */
+    private final int n;
+    private final int parsers;
+    private int chunkSize;
+    /**
+     * The maximum number of chunks read but not yet reduced.
+     */
+    private int maxChunks;
+
+    /**
+     * Builds the text written after each constraint, or null for no output.
+     */
+    private Function<PQRTree, String> render;
+    private PrintStream out;
+
+    /**
+     * The number of lines read and rejected by the last run.
+     */
+    private long lineCount;
+    private long rejectedCount;
+
+    /**
+     * The marks of the labels seen in the current line, one array per parser
+     * thread.
+     */
+    private final ThreadLocal<Marks> marks;
+
+    /**
+     * Labels seen in a line. A label was seen in the current line if its mark
+     * is the current stamp, so the marks need not be cleared between lines.
+     */
+    private static class Marks {
+
+        private final int[] stamp;
+        private int current;
+
+        Marks(int n) {
+            this.stamp = new int[n];
+            this.current = 0;
+        }
+    }
+
+    /**
+     * A chunk of lines, parsed into CSR form: the labels of line i are
+     * elements[offsets[i]] to elements[offsets[i + 1] - 1].
+     */
+    private static class Chunk {
+
+        /**
+         * The number of the first line, starting at 1.
+         */
+        private final long firstLine;
+        private final String[] lines;
+        private final int count;
+
+        private int[] offsets;
+        private int[] elements;
+        /**
+         * Why each line was rejected, or null if no line was.
+         */
+        private String[] errors;
+
+        Chunk(long firstLine, String[] lines, int count) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Builds a pipeline.
+     *
+     * @param n The number of elements of the tree.
+     * @param parsers The number of parser threads.
+     */
+    public IngestPipeline(int n, int parsers) {
+        super();
+
+        if (parsers < 1) {
+            throw new IllegalArgumentException("parsers must be positive");
+        }
+
+        this.n = n;
+        this.parsers = parsers;
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.maxChunks = 4 * parsers;
+        this.render = null;
+        this.out = null;
+        this.marks = ThreadLocal.withInitial(() -> new Marks(this.n));
+    }
+
+    /**
+     * Sets how many lines are parsed together. When the input is slower than
+     * the pipeline, as when typed, a chunk is also closed whenever no more
+     * input is ready, so each line is answered as soon as it arrives.
+     *
+     * @param lines The number of lines.
+     */
+    public void setChunkSize(int lines) {
+        if (lines < 1) {
+            throw new IllegalArgumentException("lines must be positive");
+        }
+        this.chunkSize = lines;
+    }
+
+    /**
+     * Sets how many chunks may be read ahead of the reducer. Reading stops
+     * while that many are waiting, which bounds the memory held.
+     *
+     * @param chunks The number of chunks.
+     */
+    public void setMaxChunks(int chunks) {
+        if (chunks < 1) {
+            throw new IllegalArgumentException("chunks must be positive");
+        }
+        this.maxChunks = chunks;
+    }
+
+    /**
+     * Enables the output stage. After each constraint, the text rendered from
+     * the tree is written as a line. A rejected line is answered with its
+     * error instead.
+     *
+     * @param render Builds the text from the tree. It runs on the reducer
+     *        thread, so it may read the tree.
+     * @param out Where the texts are written.
+     */
+    public void setOutput(Function<PQRTree, String> render, PrintStream out) {
+        this.render = render;
+        this.out = out;
+    }
+
+    /**
+     * Reads constraints until the end of the input or an empty line, and adds
+     * them to a tree in input order.
+     *
+     * @param in The input, with one constraint per line.
+     * @param tree The tree, with n elements.
+     * @throws IOException If reading the input fails.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     *         for the pipeline.
+     */
+    public void run(BufferedReader in, PQRTree tree) throws IOException, InterruptedException {
+        this.lineCount = 0;
+        this.rejectedCount = 0;
+
+        BlockingQueue<Future<Chunk>> parsed = new ArrayBlockingQueue<>(this.maxChunks);
+        BlockingQueue<String> output = new ArrayBlockingQueue<>(this.maxChunks);
+        Throwable[] failure = new Throwable[1];
+
+        Thread reducer = new Thread(() -> this.reduceAll(parsed, output, tree, failure), "pqrtree-reducer");
+        Thread writer = new Thread(() -> this.writeAll(output), "pqrtree-output");
+        ExecutorService pool = Executors.newFixedThreadPool(this.parsers, r -> {
+            Thread t = new Thread(r, "pqrtree-parser");
+            t.setDaemon(true);
+            return t;
+        });
+
+        reducer.start();
+        if (this.render != null) {
+            writer.start();
+        }
+        try {
+            this.readAll(in, parsed, pool);
+        } finally {
+            // The reducer drains the queue even after a failure, so this never
+            // blocks for good
+            parsed.put(CompletableFuture.completedFuture(END));
+            reducer.join();
+            if (this.render != null) {
+                writer.join();
+            }
+            pool.shutdown();
+        }
+
+        if (failure[0] != null) {
+            throw new IllegalStateException(failure[0]);
+        }
+    }
+
+    /**
+     * Returns the number of constraint lines read by the last run.
+     *
+     * @return The number of lines, without the empty line ending the input.
+     */
+    public long getLineCount() {
+        return this.lineCount;
+    }
+
+    /**
+     * Returns the number of lines rejected by the last run.
+     *
+     * @return The number of lines with an invalid label.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount;
+    }
+
+    /**
+     * Reads the input in chunks and queues them for parsing.
+     */
+    private void readAll(BufferedReader in, BlockingQueue<Future<Chunk>> parsed, ExecutorService pool)
+            throws IOException, InterruptedException {
+        String[] lines = new String[this.chunkSize];
+        int count = 0;
+        long first = 1;
+
+        String line = in.readLine();
+        while ((line != null) && !line.isEmpty()) {
+            lines[count++] = line;
+            this.lineCount++;
+
+            if ((count == this.chunkSize) || !in.ready()) {
+                Chunk chunk = new Chunk(first, lines, count);
+                parsed.put(pool.submit(() -> this.parse(chunk)));
+                first += count;
+                lines = new String[this.chunkSize];
+                count = 0;
+            }
+
+            line = in.readLine();
+        }
+
+        if (count > 0) {
+            Chunk chunk = new Chunk(first, lines, count);
+            parsed.put(pool.submit(() -> this.parse(chunk)));
+        }
+    }
+
+    /**
+     * Parses the lines of a chunk into CSR form. Runs on a parser thread.
+     */
+    private Chunk parse(Chunk chunk) {
+        Marks seen = this.marks.get();
+        int[] offsets = new int[chunk.count + 1];
+        int[] elements = new int[16 * chunk.count];
+        int size = 0;
+
+        for (int i = 0; i < chunk.count; i++) {
+            String line = chunk.lines[i];
+            seen.current++;
+            if (seen.current == 0) {
+                Arrays.fill(seen.stamp, 0);
+                seen.current = 1;
+            }
+
+            int start = size;
+            int j = 0;
+            while (j < line.length()) {
+                char ch = line.charAt(j);
+                if (Character.isWhitespace(ch)) {
+                    j++;
+                    continue;
+                }
+
+                // Read one token, which must be a label below n
+                long label = 0;
+                int k = j;
+                while ((k < line.length()) && !Character.isWhitespace(line.charAt(k))) {
+                    char d = line.charAt(k);
+                    if ((d < '0') || (d > '9')) {
+                        label = -1;
+                    } else if (label >= 0) {
+                        label = Math.min(10 * label + (d - '0'), Integer.MAX_VALUE + 1L);
+                    }
+                    k++;
+                }
+
+                String error = null;
+                if (label < 0) {
+                    error = "Bad label '" + line.substring(j, k) + "'";
+                } else if (label >= this.n) {
+                    error = "Label " + line.substring(j, k) + " out of range";
+                }
+                if (error != null) {
+                    if (chunk.errors == null) {
+                        chunk.errors = new String[chunk.count];
+                    }
+                    chunk.errors[i] = "Line " + (chunk.firstLine + i) + ": " + error;
+                    size = start;
+                    break;
+                }
+
+                // Repeated labels are kept once
+                if (seen.stamp[(int) label] != seen.current) {
+                    seen.stamp[(int) label] = seen.current;
+                    if (size == elements.length) {
+                        elements = Arrays.copyOf(elements, 2 * size);
+                    }
+                    elements[size++] = (int) label;
+                }
+                j = k;
+            }
+            offsets[i + 1] = size;
+        }
+
+        chunk.offsets = offsets;
+        chunk.elements = elements;
+        return chunk;
+    }
+
+    /**
+     * Adds the parsed chunks to the tree, in input order. Runs on the reducer
+     * thread.
+     */
+    private void reduceAll(BlockingQueue<Future<Chunk>> parsed, BlockingQueue<String> output, PQRTree tree,
+            Throwable[] failure) {
+        try {
+            while (true) {
+                Chunk chunk;
+                try {
+                    chunk = parsed.take().get();
+                } catch (ExecutionException e) {
+                    failure[0] = e.getCause();
+                    continue;
+                }
+                if (chunk == END) {
+                    break;
+                }
+
+                // After a failure, the rest of the input is only drained
+                if (failure[0] == null) {
+                    try {
+                        this.reduceChunk(chunk, output, tree);
+                    } catch (RuntimeException e) {
+                        failure[0] = e;
+                    }
+                }
+            }
+
+            if (this.render != null) {
+                output.put(END_OF_OUTPUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the constraints of one chunk to the tree, and queues the texts
+     * rendered after them.
+     */
+    private void reduceChunk(Chunk chunk, BlockingQueue<String> output, PQRTree tree)
+            throws InterruptedException {
+        StringBuilder text = (this.render != null) ? new StringBuilder() : null;
+        for (int i = 0; i < chunk.count; i++) {
+            String error = (chunk.errors != null) ? chunk.errors[i] : null;
+            if (error != null) {
+                this.rejectedCount++;
+            } else {
+                tree.reduce(chunk.elements, chunk.offsets[i], chunk.offsets[i + 1]);
+            }
+
+            if (text != null) {
+                text.append((error != null) ? error : this.render.apply(tree));
+                text.append(System.lineSeparator());
+            }
+        }
+
+        if (text != null) {
+            output.put(text.toString());
+        }
+    }
+
+    /**
+     * Writes the rendered texts, in order. Runs on the output thread.
+     */
+    private void writeAll(BlockingQueue<String> output) {
+        try {
+            String text = output.take();
+            while (text != END_OF_OUTPUT) {
+                this.out.print(text);
+                this.out.flush();
+                text = output.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
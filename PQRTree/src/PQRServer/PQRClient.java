@@ -0,0 +1,250 @@
+package PQRServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A client of PQRServer.
+ * <p>
+ * Every call sends one request and returns a future for its result, without
+ * waiting for the response, so many requests can be in flight on one
+ * connection. A background thread reads the responses and completes the
+ * futures. Calls can be made from any thread. A request that fails on the
+ * server completes its future with an IOException carrying the message of
+ * the server.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * try (PQRClient client = new PQRClient(port)) {
+ *     client.create("genes", 1000).join();
+ *     client.reduce("genes", new int[] {1, 2, 3});
+ *     int[] ordering = client.frontier("genes").join();
+ * }
+ * </pre>
+ *
+ * @author Joao
+ */
+public class PQRClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    /**
+     * The requests waiting for a response, by id.
+     */
+    private final ConcurrentHashMap<Integer, Pending<?>> pending;
+    private final Thread readerThread;
+    private int nextId;
+    /**
+     * Why the connection was lost, or null while it is up.
+     */
+    private volatile IOException failure;
+
+    /**
+     * A request waiting for its response, with the decoder of its result.
+     */
+    private static class Pending<T> {
+
+        private final CompletableFuture<T> future;
+        private final Function<ByteBuffer, T> decoder;
+
+        Pending(Function<ByteBuffer, T> decoder) {
+            this.future = new CompletableFuture<>();
+            this.decoder = decoder;
+        }
+
+        void complete(ByteBuffer result) {
+            try {
+                this.future.complete(this.decoder.apply(result));
+            } catch (RuntimeException e) {
+                this.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Connects to a server on localhost.
+     *
+     * @param port The port of the server.
+     * @throws IOException If the connection fails.
+     */
+    public PQRClient(int port) throws IOException {
+        super();
+
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        this.pending = new ConcurrentHashMap<>();
+        this.nextId = 0;
+
+        this.readerThread = new Thread(this::readResponses, "pqrtree-client");
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    public CompletableFuture<Void> create(String tree, int n) {
+        ByteBuffer args = ByteBuffer.allocate(4);
+        args.putInt(n);
+        return this.call(Protocol.CREATE, tree, args, result -> null);
+    }
+
+    public CompletableFuture<Void> drop(String tree) {
+        return this.call(Protocol.DROP, tree, ByteBuffer.allocate(0), result -> null);
+    }
+
+    /**
+     * Adds a constraint to a tree.
+     *
+     * @param tree The name of the tree.
+     * @param c The labels that must be consecutive.
+     * @return Whether the tree has an R-node afterwards.
+     */
+    public CompletableFuture<Boolean> reduce(String tree, int[] c) {
+        ByteBuffer args = ByteBuffer.allocate(4 + 4 * c.length);
+        Protocol.putSet(args, c);
+        return this.call(Protocol.REDUCE, tree, args, result -> result.get() != 0);
+    }
+
+    /**
+     * Adds constraints to a tree, in one request. If any of them is invalid,
+     * none is added.
+     *
+     * @param tree The name of the tree.
+     * @param constraints The sets of labels that must be consecutive.
+     * @return Whether the tree has an R-node afterwards.
+     */
+    public CompletableFuture<Boolean> batch(String tree, int[][] constraints) {
+        int size = 4;
+        for (int[] c : constraints) {
+            size += 4 + 4 * c.length;
+        }
+        ByteBuffer args = ByteBuffer.allocate(size);
+        args.putInt(constraints.length);
+        for (int[] c : constraints) {
+            Protocol.putSet(args, c);
+        }
+        return this.call(Protocol.BATCH, tree, args, result -> result.get() != 0);
+    }
+
+    /**
+     * Tests whether a set is consecutive in every ordering of a tree.
+     *
+     * @param tree The name of the tree.
+     * @param c The labels of the set.
+     * @return The answer.
+     * @see pqrtree.PQRTree#isConsecutive(int[])
+     */
+    public CompletableFuture<Boolean> isConsecutive(String tree, int[] c) {
+        ByteBuffer args = ByteBuffer.allocate(4 + 4 * c.length);
+        Protocol.putSet(args, c);
+        return this.call(Protocol.IS_CONSECUTIVE, tree, args, result -> result.get() != 0);
+    }
+
+    public CompletableFuture<int[]> frontier(String tree) {
+        return this.call(Protocol.FRONTIER, tree, ByteBuffer.allocate(0), Protocol::getSet);
+    }
+
+    /**
+     * Returns the string representation of a tree.
+     *
+     * @param tree The name of the tree.
+     * @return The tree string.
+     * @see pqrtree.PQRTree#toString()
+     */
+    public CompletableFuture<String> snapshot(String tree) {
+        return this.call(Protocol.SNAPSHOT, tree, ByteBuffer.allocate(0), Protocol::getString);
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @param op The operation.
+     * @param tree The name of the tree.
+     * @param args The arguments, filling the whole buffer.
+     * @param decoder Decodes the result of an OK response.
+     * @return The future result.
+     */
+    private <T> CompletableFuture<T> call(byte op, String tree, ByteBuffer args,
+            Function<ByteBuffer, T> decoder) {
+        Pending<T> p = new Pending<>(decoder);
+        ByteBuffer body = ByteBuffer.allocate(5 + Protocol.sizeOf(tree) + args.capacity());
+        body.putInt(0);
+        body.put(op);
+        Protocol.putString(body, tree);
+        body.put(args.array());
+        // The server would drop the connection, failing every other request
+        if (body.capacity() > Protocol.MAX_FRAME) {
+            p.future.completeExceptionally(
+                    new IOException("Request of " + body.capacity() + " bytes exceeds the frame limit"));
+            return p.future;
+        }
+
+        try {
+            synchronized (this.out) {
+                int id = this.nextId++;
+                body.putInt(0, id);
+                this.pending.put(id, p);
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                this.out.writeInt(body.capacity());
+                this.out.write(body.array());
+                this.out.flush();
+            }
+        } catch (IOException e) {
+            this.pending.values().remove(p);
+            p.future.completeExceptionally(e);
+        }
+        return p.future;
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int length = this.in.readInt();
+                if ((length < 5) || (length > Protocol.MAX_FRAME)) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                this.in.readFully(frame);
+
+                ByteBuffer response = ByteBuffer.wrap(frame);
+                Pending<?> p = this.pending.remove(response.getInt());
+                byte status = response.get();
+                if (p == null) {
+                    continue;
+                }
+                if (status == Protocol.OK) {
+                    p.complete(response);
+                } else {
+                    p.future.completeExceptionally(new IOException(Protocol.getString(response)));
+                }
+            }
+        } catch (IOException e) {
+            // The connection is gone: fail everything still waiting
+            IOException cause = (e instanceof EOFException) ? new IOException("Connection closed") : e;
+            this.failure = cause;
+            for (Pending<?> p : this.pending.values()) {
+                p.future.completeExceptionally(cause);
+            }
+            this.pending.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+}
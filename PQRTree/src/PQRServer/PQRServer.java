@@ -0,0 +1,448 @@
+package PQRServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pqrtree.PQRTree;
+
+/**
+ * A server hosting named PQR-trees, so that several processes can share
+ * long-lived trees. It listens on a localhost TCP port and speaks the binary
+ * protocol described in Protocol.
+ * <p>
+ * A single selector thread accepts connections, reads requests and writes
+ * responses. Requests are decoded and run on the threads of the trees: one
+ * writer thread per tree and a pool of reader threads shared by all trees.
+ * See TreeHost.
+ * <p>
+ * Usage: PQRServer [port] [reader threads]
+ *
+ * @author Joao
+ */
+public class PQRServer implements AutoCloseable {
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    /**
+     * The trees, by name.
+     */
+    private final ConcurrentHashMap<String, TreeHost> trees;
+    /**
+     * The pool running the reads that need not wait for writes.
+     */
+    private final ExecutorService readers;
+    /**
+     * Connections with responses waiting to be written, handed from the tree
+     * threads to the selector thread.
+     */
+    private final ConcurrentLinkedQueue<Connection> pendingWrites;
+    private final Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * One client connection. Requests are read into a growing buffer, and
+     * responses wait in a queue until the socket can take them.
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private ByteBuffer in;
+        private final ConcurrentLinkedQueue<ByteBuffer> out;
+        /**
+         * The number of writes sent on this connection and not yet done.
+         */
+        private final AtomicInteger pendingWrites;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = ByteBuffer.allocate(1 << 16);
+            this.out = new ConcurrentLinkedQueue<>();
+            this.pendingWrites = new AtomicInteger();
+        }
+
+        /**
+         * Queues a response. Called from any thread.
+         *
+         * @param response The response frame, ready to be written.
+         */
+        void send(ByteBuffer response) {
+            this.out.add(response);
+            PQRServer.this.pendingWrites.add(this);
+            PQRServer.this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Starts a server on a localhost port.
+     *
+     * @param port The port, or 0 for any free port.
+     * @param readerThreads The number of threads running reads.
+     * @throws IOException If the port cannot be bound.
+     */
+    public PQRServer(int port, int readerThreads) throws IOException {
+        super();
+
+        this.trees = new ConcurrentHashMap<>();
+        this.readers = Executors.newFixedThreadPool(readerThreads, r -> {
+            Thread t = new Thread(r, "pqrtree-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        this.running = true;
+        this.selectorThread = new Thread(this::loop, "pqrtree-server");
+        this.selectorThread.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return The port.
+     * @throws IOException If the server socket is closed.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) this.serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Stops accepting requests and closes every connection. Writes already
+     * queued on the trees still run.
+     */
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        this.selector.wakeup();
+        try {
+            this.selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : this.selector.keys()) {
+            key.channel().close();
+        }
+        this.selector.close();
+        this.readers.shutdown();
+        for (TreeHost host : this.trees.values()) {
+            host.close();
+        }
+    }
+
+    /*
+     **********************
+     * The selector loop. *
+     **********************
+     */
+    private void loop() {
+        while (this.running) {
+            try {
+                this.selector.select();
+
+                Connection c;
+                while ((c = this.pendingWrites.poll()) != null) {
+                    SelectionKey key = c.channel.keyFor(this.selector);
+                    if ((key != null) && key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            this.accept();
+                        } else {
+                            if (key.isReadable()) {
+                                this.read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                this.write(key);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("PQRServer: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.serverChannel.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(this.selector, SelectionKey.OP_READ, new Connection(channel));
+        }
+    }
+
+    /**
+     * Reads what the socket has and dispatches every complete request.
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        if (c.channel.read(c.in) < 0) {
+            throw new IOException("Connection closed");
+        }
+
+        c.in.flip();
+        while (c.in.remaining() >= 4) {
+            int length = c.in.getInt(c.in.position());
+            if ((length < 9) || (length > Protocol.MAX_FRAME)) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (c.in.remaining() < 4 + length) {
+                // Make room for the rest of a large frame
+                if (c.in.capacity() < 4 + length) {
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    bigger.put(c.in);
+                    c.in = bigger;
+                    return;
+                }
+                break;
+            }
+
+            c.in.getInt();
+            byte[] frame = new byte[length];
+            c.in.get(frame);
+            this.dispatch(c, ByteBuffer.wrap(frame));
+        }
+        c.in.compact();
+    }
+
+    /**
+     * Writes as many queued responses as the socket takes.
+     */
+    private void write(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        ByteBuffer response;
+        while ((response = c.out.peek()) != null) {
+            c.channel.write(response);
+            if (response.hasRemaining()) {
+                return;
+            }
+            c.out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+
+        // A response may have been queued after the queue was found empty
+        if (!c.out.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /*
+     *************************
+     * Running the requests. *
+     *************************
+     */
+
+    /**
+     * Routes a request to its tree. Creating and dropping trees is done
+     * right away, so that later requests on the same connection see it.
+     *
+     * @param c The connection the request came from.
+     * @param request The request body.
+     */
+    private void dispatch(Connection c, ByteBuffer request) {
+        int id = request.getInt();
+        byte op = request.get();
+        String name;
+        try {
+            name = Protocol.getString(request);
+        } catch (RuntimeException e) {
+            c.send(error(id, "Malformed request"));
+            return;
+        }
+
+        if (op == Protocol.CREATE) {
+            int n = request.getInt();
+            if (n < 0) {
+                c.send(error(id, "Negative size " + n));
+            } else if (this.trees.containsKey(name)) {
+                c.send(error(id, "Tree " + name + " already exists"));
+            } else {
+                this.trees.put(name, new TreeHost(name, n));
+                c.send(ok(id));
+            }
+            return;
+        }
+
+        TreeHost host = (op == Protocol.DROP) ? this.trees.remove(name) : this.trees.get(name);
+        if (host == null) {
+            c.send(error(id, "No tree named " + name));
+            return;
+        }
+        if (op == Protocol.DROP) {
+            host.close();
+            c.send(ok(id));
+            return;
+        }
+
+        boolean read = Protocol.isRead(op);
+        TreeHost.Task task = tree -> {
+            ByteBuffer response;
+            try {
+                response = run(id, op, tree, request);
+            } catch (RuntimeException e) {
+                response = error(id, String.valueOf(e.getMessage()));
+            }
+            if (!read) {
+                c.pendingWrites.decrementAndGet();
+            }
+            c.send(response);
+        };
+        try {
+            if (read) {
+                host.read(task, this.readers, c.pendingWrites.get() > 0);
+            } else {
+                c.pendingWrites.incrementAndGet();
+                host.write(task);
+            }
+        } catch (RejectedExecutionException e) {
+            if (!read) {
+                c.pendingWrites.decrementAndGet();
+            }
+            c.send(error(id, "No tree named " + name));
+        }
+    }
+
+    /**
+     * Runs one operation on a tree, on the thread of the tree.
+     *
+     * @return The response frame.
+     */
+    private static ByteBuffer run(int id, byte op, PQRTree tree, ByteBuffer request) {
+        ByteBuffer response;
+        switch (op) {
+            case Protocol.REDUCE:
+                tree.reduce(checked(tree, Protocol.getSet(request)));
+                response = ok(id, 1);
+                response.put((byte) (tree.hasRNode() ? 1 : 0));
+                break;
+
+            case Protocol.BATCH:
+                // Check the whole batch before adding any of it
+                int[][] batch = new int[request.getInt()][];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = checked(tree, Protocol.getSet(request));
+                }
+                for (int[] c : batch) {
+                    tree.reduce(c);
+                }
+                response = ok(id, 1);
+                response.put((byte) (tree.hasRNode() ? 1 : 0));
+                break;
+
+            case Protocol.IS_CONSECUTIVE:
+                boolean consecutive = tree.isConsecutive(checked(tree, Protocol.getSet(request)));
+                response = ok(id, 1);
+                response.put((byte) (consecutive ? 1 : 0));
+                break;
+
+            case Protocol.FRONTIER:
+                response = ok(id, 4 + 4L * tree.size());
+                Protocol.putSet(response, tree.frontier());
+                break;
+
+            case Protocol.SNAPSHOT:
+                String s = tree.toString();
+                response = ok(id, Protocol.sizeOf(s));
+                Protocol.putString(response, s);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+        response.flip();
+        return response;
+    }
+
+    /**
+     * Checks that a set only has labels of the tree, without repetitions.
+     * A bad set would corrupt the tree, which is shared by every client.
+     */
+    private static int[] checked(PQRTree tree, int[] set) {
+        BitSet seen = new BitSet(tree.size());
+        for (int x : set) {
+            if ((x < 0) || (x >= tree.size())) {
+                throw new IllegalArgumentException("Label " + x + " out of range");
+            }
+            if (seen.get(x)) {
+                throw new IllegalArgumentException("Label " + x + " repeated");
+            }
+            seen.set(x);
+        }
+        return set;
+    }
+
+    /**
+     * Starts an OK response, leaving room for a result of the given size.
+     * The result is put by the caller, who then flips the buffer. A result
+     * too large for a frame is an error, which the client gets instead.
+     */
+    private static ByteBuffer ok(int id, long resultSize) {
+        if (5 + resultSize > Protocol.MAX_FRAME) {
+            throw new IllegalStateException("Result of " + resultSize + " bytes exceeds the frame limit");
+        }
+        ByteBuffer response = ByteBuffer.allocate(9 + (int) resultSize);
+        response.putInt(5 + (int) resultSize);
+        response.putInt(id);
+        response.put(Protocol.OK);
+        return response;
+    }
+
+    /**
+     * Builds an OK response without a result.
+     */
+    private static ByteBuffer ok(int id) {
+        ByteBuffer response = ok(id, 0);
+        response.flip();
+        return response;
+    }
+
+    private static ByteBuffer error(int id, String message) {
+        ByteBuffer response = ByteBuffer.allocate(9 + Protocol.sizeOf(message));
+        response.putInt(5 + Protocol.sizeOf(message));
+        response.putInt(id);
+        response.put(Protocol.ERROR);
+        Protocol.putString(response, message);
+        response.flip();
+        return response;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7878;
+        int readerThreads = (args.length > 1) ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        PQRServer server = new PQRServer(port, readerThreads);
+        System.out.println("PQRServer listening on localhost:" + server.getPort());
+    }
+}
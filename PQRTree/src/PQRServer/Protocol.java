@@ -0,0 +1,123 @@
+package PQRServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol spoken by PQRServer and PQRClient.
+ * <p>
+ * Every message is a frame: a 4-byte length, counting the bytes after it,
+ * followed by the body. All numbers are big-endian.
+ * <p>
+ * A request body is a 4-byte request id chosen by the client, a 1-byte
+ * operation, the name of the tree and the arguments of the operation. A
+ * response body is the id of the request, a 1-byte status and the result.
+ * Clients may send many requests without waiting for the responses, which
+ * may come back in any order.
+ * <p>
+ * Strings (tree names, error messages, snapshots) are a 4-byte length
+ * followed by UTF-8 bytes. Sets of labels are a 4-byte count followed by the
+ * 4-byte labels.
+ * <p>
+ * <b>Operations:</b>
+ * <ul>
+ * <li>CREATE n: creates a universal tree with n leaves.
+ * <li>DROP: discards the tree.
+ * <li>REDUCE set: adds a constraint. Returns 1 byte, whether the tree has an
+ * R-node.
+ * <li>BATCH m set...: adds m constraints. Returns like REDUCE.
+ * <li>IS_CONSECUTIVE set: returns 1 byte, whether the set is consecutive in
+ * every ordering of the tree.
+ * <li>FRONTIER: returns the leaves from left to right, as a set.
+ * <li>SNAPSHOT: returns the string representation of the tree.
+ * </ul>
+ * An ERROR status carries a message instead of the result.
+ *
+ * @author Joao
+ */
+public final class Protocol {
+
+    public static final byte CREATE = 1;
+    public static final byte DROP = 2;
+    public static final byte REDUCE = 3;
+    public static final byte BATCH = 4;
+    public static final byte IS_CONSECUTIVE = 5;
+    public static final byte FRONTIER = 6;
+    public static final byte SNAPSHOT = 7;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    /**
+     * Largest frame accepted, in bytes. A peer sending a larger one is
+     * disconnected. The server answers with an ERROR instead of a result too
+     * large for a frame.
+     */
+    public static final int MAX_FRAME = 1 << 26;
+
+    private Protocol() {
+        super();
+    }
+
+    /**
+     * Tests whether an operation only reads the tree.
+     *
+     * @param op An operation code.
+     * @return true for IS_CONSECUTIVE, FRONTIER and SNAPSHOT.
+     */
+    public static boolean isRead(byte op) {
+        return (op == IS_CONSECUTIVE) || (op == FRONTIER) || (op == SNAPSHOT);
+    }
+
+    /**
+     * Returns the number of bytes taken by a string.
+     *
+     * @param s A string.
+     * @return The encoded size.
+     */
+    public static int sizeOf(String s) {
+        return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    public static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[checkedLength(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void putSet(ByteBuffer buffer, int[] set) {
+        buffer.putInt(set.length);
+        for (int x : set) {
+            buffer.putInt(x);
+        }
+    }
+
+    public static int[] getSet(ByteBuffer buffer) {
+        int[] set = new int[checkedLength(buffer, 4)];
+        for (int i = 0; i < set.length; i++) {
+            set[i] = buffer.getInt();
+        }
+        return set;
+    }
+
+    /**
+     * Reads a length and checks that the buffer holds that many items.
+     *
+     * @param buffer The buffer.
+     * @param itemSize The size of each item, in bytes.
+     * @return The length.
+     */
+    private static int checkedLength(ByteBuffer buffer, int itemSize) {
+        int length = buffer.getInt();
+        if ((length < 0) || (length > buffer.remaining() / itemSize)) {
+            throw new IllegalArgumentException("Bad length " + length);
+        }
+        return length;
+    }
+}
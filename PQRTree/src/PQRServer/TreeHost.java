@@ -0,0 +1,117 @@
+package PQRServer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import pqrtree.PQRTree;
+
+/**
+ * A named tree hosted by the server.
+ * <p>
+ * Writes run one at a time, in arrival order, on a thread owned by the tree.
+ * Reads run on the shared reader pool, concurrently with each other. A read
+ * sent by a client that still has writes queued goes behind them on the
+ * writer thread instead, so a client always reads its own writes.
+ *
+ * @author Joao
+ */
+class TreeHost {
+
+    /**
+     * The tree. Only accessed while holding the lock.
+     */
+    private PQRTree tree;
+    /**
+     * Whether the tree was built. Reads wait on the writer thread until then.
+     */
+    private volatile boolean built;
+    /**
+     * Separates the writer from the readers.
+     */
+    private final ReadWriteLock lock;
+    /**
+     * The thread running the writes of this tree.
+     */
+    private final ExecutorService writer;
+
+    /**
+     * Creates the host and queues the creation of a universal tree.
+     *
+     * @param name The name of the tree, used for the writer thread.
+     * @param n The number of leaves.
+     */
+    TreeHost(String name, int n) {
+        super();
+
+        this.lock = new ReentrantReadWriteLock();
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "pqrtree-writer-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        this.built = false;
+
+        this.write(tree -> {
+            this.tree = new PQRTree(n);
+            this.built = true;
+        });
+    }
+
+    /**
+     * An operation on the tree of a host.
+     */
+    interface Task {
+
+        void run(PQRTree tree);
+    }
+
+    /**
+     * Queues an operation that changes the tree.
+     *
+     * @param task The operation.
+     */
+    void write(Task task) {
+        this.writer.execute(() -> {
+            this.lock.writeLock().lock();
+            try {
+                task.run(this.tree);
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * Queues an operation that only reads the tree.
+     *
+     * @param task The operation.
+     * @param readers The pool for reads that need not wait for writes.
+     * @param afterWrites Whether the read must run after the writes already
+     *        queued.
+     */
+    void read(Task task, ExecutorService readers, boolean afterWrites) {
+        Runnable r = () -> {
+            this.lock.readLock().lock();
+            try {
+                task.run(this.tree);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        };
+
+        if (afterWrites || !this.built) {
+            this.writer.execute(r);
+        } else {
+            readers.execute(r);
+        }
+    }
+
+    /**
+     * Stops the writer thread once the operations already queued are done.
+     */
+    void close() {
+        this.writer.shutdown();
+    }
+}
@@ -0,0 +1,304 @@
+package pqrtree;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Solves many independent C1P instances concurrently.
+ * <p>
+ * Instances are pulled lazily from an iterator and solved on a work-stealing
+ * pool. Each worker thread keeps its own PQRTree and resets it between
+ * instances, so trees are not rebuilt from scratch for every instance. At most
+ * maxInFlight instances are submitted and not yet delivered at any time, which
+ * bounds the memory held by the solver regardless of the input size.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * try (BatchSolver solver = new BatchSolver(threads, 4 * threads)) {
+ *     solver.solve(instances, true, result -&gt; ...);
+ * }
+ * </pre>
+ *
+ * @author Joao
+ */
+public class BatchSolver implements AutoCloseable {
+
+    /**
+     * One C1P instance: a number of elements and the constraints on them.
+     */
+    public static class Instance {
+
+        private final int n;
+        private final int[][] constraints;
+
+        /**
+         * Builds an instance.
+         *
+         * @param n The number of elements, labeled from 0 to n - 1.
+         * @param constraints The sets of elements that must be consecutive.
+         */
+        public Instance(int n, int[][] constraints) {
+            this.n = n;
+            this.constraints = constraints;
+        }
+
+        public int getN() {
+            return n;
+        }
+
+        public int[][] getConstraints() {
+            return constraints;
+        }
+    }
+
+    /**
+     * The outcome of solving one instance.
+     */
+    public static class Result {
+
+        private final long index;
+        private final int[] ordering;
+        private final boolean hasRNode;
+        private final String tree;
+        private final long canonicalHash;
+
+        Result(long index, int[] ordering, boolean hasRNode, String tree, long canonicalHash) {
+            this.index = index;
+            this.ordering = ordering;
+            this.hasRNode = hasRNode;
+            this.tree = tree;
+            this.canonicalHash = canonicalHash;
+        }
+
+        /**
+         * Returns the position of the instance in the input.
+         *
+         * @return The submission index of the instance, starting at 0.
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the frontier of the final tree. It is a valid ordering if,
+         * and only if, hasRNode() is false.
+         *
+         * @return The leaf labels in frontier order.
+         */
+        public int[] getOrdering() {
+            return ordering;
+        }
+
+        public boolean hasRNode() {
+            return hasRNode;
+        }
+
+        /**
+         * Returns the string representation of the final tree, or null if the
+         * solver was asked not to build it.
+         *
+         * @return The tree string.
+         * @see PQRTree#toString()
+         */
+        public String getTree() {
+            return tree;
+        }
+
+        /**
+         * Returns the canonical hash of the final tree, which is the same for
+         * instances with equivalent trees.
+         *
+         * @return The hash.
+         * @see PQRTree#canonicalHash()
+         */
+        public long getCanonicalHash() {
+            return canonicalHash;
+        }
+    }
+
+    /**
+     * The pool running the reductions.
+     */
+    private final ExecutorService pool;
+    /**
+     * Maximum number of instances submitted but not yet delivered.
+     */
+    private final int maxInFlight;
+    /**
+     * Whether results carry the string representation of the tree.
+     */
+    private boolean buildTreeStrings;
+    /**
+     * One tree per worker thread, reset for every instance.
+     */
+    private final ThreadLocal<PQRTree> trees;
+    /**
+     * Results of instances seen before, or null.
+     */
+    private ResultCache cache;
+
+    /**
+     * Builds a solver.
+     *
+     * @param threads The number of worker threads.
+     * @param maxInFlight The maximum number of instances being solved or
+     *        waiting to be delivered at any time.
+     */
+    public BatchSolver(int threads, int maxInFlight) {
+        super();
+
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        this.pool = Executors.newWorkStealingPool(threads);
+        this.maxInFlight = maxInFlight;
+        this.buildTreeStrings = true;
+        this.trees = new ThreadLocal<>();
+        this.cache = null;
+    }
+
+    /**
+     * Sets whether results should carry the string representation of the
+     * tree. Building it costs time and memory linear in the tree size.
+     *
+     * @param buildTreeStrings true to build the tree strings (the default).
+     */
+    public void setBuildTreeStrings(boolean buildTreeStrings) {
+        this.buildTreeStrings = buildTreeStrings;
+    }
+
+    /**
+     * Sets a cache of results. An instance found in it is rebuilt from its
+     * basis instead of reduced, and the ordering found the first time is
+     * reused. The cache may be shared with other solvers.
+     *
+     * @param cache The cache, or null to solve every instance.
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Solves every instance given by the iterator, passing the results to the
+     * sink on the calling thread. The call returns once every result was
+     * delivered.
+     *
+     * @param instances The instances to be solved. It is only advanced when
+     *        there is room for another instance in flight.
+     * @param ordered If true, results are delivered in submission order.
+     *        Otherwise, they are delivered as soon as they are ready.
+     * @param sink Receives the results.
+     * @throws InterruptedException If the calling thread is interrupted while
+     *         waiting for a result.
+     * @throws ExecutionException If solving some instance threw an exception.
+     */
+    public void solve(Iterator<Instance> instances, boolean ordered, Consumer<Result> sink)
+            throws InterruptedException, ExecutionException {
+        if (ordered) {
+            this.solveOrdered(instances, sink);
+        } else {
+            this.solveUnordered(instances, sink);
+        }
+    }
+
+    private void solveOrdered(Iterator<Instance> instances, Consumer<Result> sink)
+            throws InterruptedException, ExecutionException {
+        ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+        long index = 0;
+
+        while (instances.hasNext()) {
+            if (pending.size() == this.maxInFlight) {
+                sink.accept(pending.poll().get());
+            }
+            Instance instance = instances.next();
+            long i = index++;
+            pending.add(this.pool.submit(() -> this.solveOne(i, instance)));
+        }
+        while (!pending.isEmpty()) {
+            sink.accept(pending.poll().get());
+        }
+    }
+
+    private void solveUnordered(Iterator<Instance> instances, Consumer<Result> sink)
+            throws InterruptedException, ExecutionException {
+        CompletionService<Result> completed = new ExecutorCompletionService<>(this.pool);
+        int inFlight = 0;
+        long index = 0;
+
+        while (instances.hasNext()) {
+            if (inFlight == this.maxInFlight) {
+                sink.accept(completed.take().get());
+                inFlight--;
+            }
+            Instance instance = instances.next();
+            long i = index++;
+            completed.submit(() -> this.solveOne(i, instance));
+            inFlight++;
+        }
+        while (inFlight > 0) {
+            sink.accept(completed.take().get());
+            inFlight--;
+        }
+    }
+
+    /**
+     * Solves one instance on the tree of the current worker thread.
+     *
+     * @param index The submission index of the instance.
+     * @param instance The instance.
+     * @return The result.
+     */
+    private Result solveOne(long index, Instance instance) {
+        PQRTree tree = this.trees.get();
+        if (tree == null) {
+            tree = new PQRTree(instance.getN());
+            this.trees.set(tree);
+        } else {
+            tree.reset(instance.getN());
+        }
+
+        ResultCache.Key key = null;
+        if (this.cache != null) {
+            key = ResultCache.key(instance.getN(), instance.getConstraints());
+            ResultCache.Snapshot hit = this.cache.get(key);
+            if (hit != null) {
+                String s = null;
+                if (this.buildTreeStrings) {
+                    for (int[] c : hit.getBasis()) {
+                        tree.reduce(c);
+                    }
+                    s = tree.toString();
+                }
+                return new Result(index, hit.getFrontier().clone(), hit.hasRNode(), s, hit.getCanonicalHash());
+            }
+        }
+
+        for (int[] c : instance.getConstraints()) {
+            tree.reduce(c);
+        }
+        if (key != null) {
+            this.cache.put(key, tree);
+        }
+
+        String s = this.buildTreeStrings ? tree.toString() : null;
+        return new Result(index, tree.frontier(), tree.hasRNode(), s, tree.canonicalHash());
+    }
+
+    /**
+     * Shuts the worker pool down. Instances already submitted are still
+     * solved.
+     */
+    @Override
+    public void close() {
+        this.pool.shutdown();
+    }
+}
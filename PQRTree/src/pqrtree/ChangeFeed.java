@@ -0,0 +1,260 @@
+package pqrtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.Consumer;
+
+/**
+ * Records the structural changes made to a tree and publishes them as
+ * deltas. While a listener is set, the nodes report their structural
+ * operations here, and every write to a sibling or end field, at the same
+ * points where they save fields in the journal. The tree flushes what was
+ * recorded into a delta at the end of each operation.
+ * <p>
+ * Internal nodes get their ids here, so trees without a listener pay nothing
+ * for them.
+ *
+ * @author Joao
+ * @see TreeDelta
+ */
+final class ChangeFeed {
+
+    private final PQRTree tree;
+    private final Consumer<TreeDelta> listener;
+
+    /**
+     * The ids of the internal nodes in the tree.
+     */
+    private final IdentityHashMap<PQRNode, Long> ids;
+    private long nextId;
+
+    /*
+     * The changes recorded since the last delta: the operations, as in
+     * TreeDelta, the nodes whose siblings were written and the nodes whose
+     * first or last child was written.
+     */
+    private byte[] operations;
+    private long[] operationNodes;
+    private long[] operationArguments;
+    private int size;
+    private LinkedHashSet<Node> linked;
+    private LinkedHashSet<PQRNode> ended;
+
+    /**
+     * The nodes created and destroyed since the last delta, whose ids are
+     * dropped when it is flushed or discarded.
+     */
+    private final ArrayList<PQRNode> created;
+    private final ArrayList<PQRNode> destroyed;
+
+    ChangeFeed(PQRTree tree, Consumer<TreeDelta> listener) {
+        super();
+
+        this.tree = tree;
+        this.listener = listener;
+        this.ids = new IdentityHashMap<>();
+        this.nextId = -1;
+        this.operations = new byte[64];
+        this.operationNodes = new long[64];
+        this.operationArguments = new long[64];
+        this.size = 0;
+        this.linked = new LinkedHashSet<>();
+        this.ended = new LinkedHashSet<>();
+        this.created = new ArrayList<>();
+        this.destroyed = new ArrayList<>();
+    }
+
+    void created(PQRNode v, PQRType type) {
+        this.ids.put(v, this.nextId--);
+        this.created.add(v);
+        this.record(TreeDelta.CREATE, this.id(v), type.ordinal());
+    }
+
+    void destroyed(PQRNode v) {
+        this.destroyed.add(v);
+        this.record(TreeDelta.DESTROY, this.id(v), TreeDelta.NONE);
+    }
+
+    void retyped(PQRNode v, PQRType type) {
+        this.record(TreeDelta.RETYPE, this.id(v), type.ordinal());
+    }
+
+    void moved(Node v, PQRNode p) {
+        this.record(TreeDelta.MOVE, this.id(v), (p != null) ? this.id(p) : TreeDelta.NONE);
+    }
+
+    void merged(PQRNode v, PQRNode r) {
+        this.record(TreeDelta.MERGE, this.id(v), this.id(r));
+    }
+
+    /**
+     * Records a write to a field of a node.
+     *
+     * @param v The node.
+     * @param field The code of the field, as in the journal.
+     */
+    void saved(Node v, int field) {
+        if ((field == Journal.SIBLING0) || (field == Journal.SIBLING1)) {
+            this.linked.add(v);
+        } else if ((field == Journal.FIRST_CHILD) || (field == Journal.LAST_CHILD)) {
+            this.ended.add((PQRNode) v);
+        }
+    }
+
+    private void record(byte operation, long node, long argument) {
+        if (this.size == this.operations.length) {
+            int capacity = 2 * this.size;
+            this.operations = Arrays.copyOf(this.operations, capacity);
+            this.operationNodes = Arrays.copyOf(this.operationNodes, capacity);
+            this.operationArguments = Arrays.copyOf(this.operationArguments, capacity);
+        }
+        this.operations[this.size] = operation;
+        this.operationNodes[this.size] = node;
+        this.operationArguments[this.size] = argument;
+        this.size++;
+    }
+
+    /**
+     * Forgets the changes of an operation that was rolled back.
+     */
+    void discard() {
+        for (PQRNode v : this.created) {
+            this.ids.remove(v);
+        }
+        this.clear();
+    }
+
+    /**
+     * Publishes the changes recorded since the last delta, if any.
+     *
+     * @param root The root of the tree.
+     * @param constraintIndex The index of the constraint that made the
+     *        changes, or -1.
+     * @param lca The root of a subtree holding the changes, or null for the
+     *        root of the tree.
+     */
+    void flush(PQRNode root, long constraintIndex, PQRNode lca) {
+        if ((this.size == 0) && this.linked.isEmpty() && this.ended.isEmpty()) {
+            return;
+        }
+        this.listener.accept(this.build(false, root, constraintIndex, lca));
+    }
+
+    /**
+     * Builds a delta from the changes recorded, and starts recording anew.
+     */
+    private TreeDelta build(boolean snapshot, PQRNode root, long constraintIndex, PQRNode lca) {
+        // Only the nodes still in the tree have links and ends
+        long[] linked = new long[this.linked.size()];
+        long[] links = new long[2 * this.linked.size()];
+        int k = 0;
+        for (Node v : this.linked) {
+            if (this.isLive(v)) {
+                linked[k] = this.id(v);
+                links[2 * k] = this.id(v.sibling0);
+                links[2 * k + 1] = this.id(v.sibling1);
+                k++;
+            }
+        }
+        linked = Arrays.copyOf(linked, k);
+        links = Arrays.copyOf(links, 2 * k);
+
+        long[] ended = new long[this.ended.size()];
+        long[] ends = new long[2 * this.ended.size()];
+        k = 0;
+        for (PQRNode v : this.ended) {
+            if (!v.isDeleted()) {
+                ended[k] = this.id(v);
+                ends[2 * k] = this.id(v.getFirstChild());
+                ends[2 * k + 1] = this.id(v.getLastChild());
+                k++;
+            }
+        }
+        ended = Arrays.copyOf(ended, k);
+        ends = Arrays.copyOf(ends, 2 * k);
+
+        TreeDelta delta = new TreeDelta(snapshot, constraintIndex, this.id(root),
+                this.id((lca != null) ? lca : root), Arrays.copyOf(this.operations, this.size), Arrays.copyOf(this.operationNodes, this.size),
+                Arrays.copyOf(this.operationArguments, this.size), linked, links, ended, ends);
+
+        // The ids of the nodes gone are never used again
+        for (PQRNode v : this.destroyed) {
+            this.ids.remove(v);
+        }
+        this.clear();
+        return delta;
+    }
+
+    /**
+     * Gives new ids to every node of the tree and publishes a snapshot of it.
+     *
+     * @param root The root of the tree.
+     * @param constraintIndex The index of the last constraint, or -1.
+     */
+    void snapshot(PQRNode root, long constraintIndex) {
+        this.clear();
+        this.ids.clear();
+
+        // Depth-first walk, creating each node before its children
+        ArrayList<PQRNode> nodes = new ArrayList<>();
+        this.ids.put(root, this.nextId--);
+        this.record(TreeDelta.CREATE, this.id(root), root.getType().ordinal());
+        nodes.add(root);
+        while (!nodes.isEmpty()) {
+            PQRNode v = nodes.remove(nodes.size() - 1);
+            this.ended.add(v);
+
+            Node previous = null;
+            Node child = v.getFirstChild();
+            while (child != null) {
+                if (child instanceof PQRNode) {
+                    PQRNode c = (PQRNode) child;
+                    this.ids.put(c, this.nextId--);
+                    this.record(TreeDelta.CREATE, this.id(c), c.getType().ordinal());
+                    nodes.add(c);
+                }
+                this.record(TreeDelta.MOVE, this.id(child), this.id(v));
+                this.linked.add(child);
+
+                Node next = child.nextSibling(previous);
+                previous = child;
+                child = next;
+            }
+        }
+
+        this.listener.accept(this.build(true, root, constraintIndex, root));
+    }
+
+    /**
+     * Tells whether a node is in the tree. A leaf replaced by a fresh one
+     * with the same label, as PQRTree.addTwin(int) may do, is not.
+     */
+    private boolean isLive(Node v) {
+        if (v instanceof Leaf) {
+            return this.tree.getLeaf(((Leaf) v).getValue()) == v;
+        }
+        return !((PQRNode) v).isDeleted();
+    }
+
+    private long id(Node v) {
+        if (v == null) {
+            return TreeDelta.NONE;
+        }
+        if (v instanceof Leaf) {
+            return ((Leaf) v).getValue();
+        }
+        return this.ids.get(v);
+    }
+
+    private void clear() {
+        this.size = 0;
+        // Cleared sets keep their tables, which would make every later
+        // clearing cost as much as the largest delta, the snapshot
+        this.linked = new LinkedHashSet<>();
+        this.ended = new LinkedHashSet<>();
+        this.created.clear();
+        this.destroyed.clear();
+    }
+}
@@ -0,0 +1,270 @@
+package pqrtree;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A tree that many threads can add constraints to at once. Reductions in
+ * unrelated regions of the tree run in parallel.
+ * <p>
+ * The elements that some constraint relates, directly or through other
+ * constraints, form a component. Each component is a separate subtree
+ * under the root, a P-node, and no reduction inside one of them looks at the
+ * others. So each component is kept in a PQRTree of its own, with its own
+ * lock. A reduction first finds the components of its elements under a
+ * shared lock, which only constraints joining components exclude. If all
+ * the elements are in one component, it locks that component alone and
+ * reduces there, in parallel with reductions on other components. Otherwise
+ * it takes the exclusive lock, grafts the smaller components into the
+ * largest one, and reduces there. Each element is grafted a logarithmic
+ * number of times at most, so joining costs little overall.
+ * <p>
+ * The whole tree can be read with toPQRTree(), which waits for the running
+ * reductions.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * ConcurrentPQRTree tree = new ConcurrentPQRTree(n);
+ * constraints.parallelStream().forEach(tree::reduce);
+ * System.out.println(tree);
+ * </pre>
+ *
+ * @author Joao
+ */
+public class ConcurrentPQRTree {
+
+    /**
+     * A component, in a tree of its own.
+     */
+    private static final class Component {
+
+        private final PQRTree tree;
+        /**
+         * The label of each leaf of the tree, in the whole tree.
+         */
+        private int[] elements;
+
+        Component() {
+            this.tree = new PQRTree(0);
+            this.elements = new int[8];
+        }
+
+        /**
+         * Adds a leaf for an element, with no constraint on it.
+         *
+         * @return The label of the leaf in the tree of the component.
+         */
+        int addElement(int e) {
+            int label = this.tree.addLeaf();
+            if (label == this.elements.length) {
+                this.elements = Arrays.copyOf(this.elements, 2 * label);
+            }
+            this.elements[label] = e;
+            return label;
+        }
+    }
+
+    /**
+     * Shared by reductions inside one component, exclusive for reductions
+     * joining components and for reading the whole tree.
+     */
+    private final ReentrantReadWriteLock structure;
+    /**
+     * The component of each element, or null. Only changed under the
+     * exclusive lock.
+     */
+    private final Component[] componentOf;
+    /**
+     * The label of each element in the tree of its component.
+     */
+    private final int[] labelOf;
+    private final LinkedHashSet<Component> components;
+    private volatile boolean hasRNode;
+
+    /**
+     * Builds an universal tree with n leaves.
+     *
+     * @param n The number of leaves.
+     */
+    public ConcurrentPQRTree(int n) {
+        super();
+
+        this.structure = new ReentrantReadWriteLock();
+        this.componentOf = new Component[n];
+        this.labelOf = new int[n];
+        this.components = new LinkedHashSet<>();
+        this.hasRNode = false;
+    }
+
+    /**
+     * Adds one constraint set to the tree. It can be called from many threads
+     * at once.
+     *
+     * @param c The labels that must be consecutive. Repeated labels are
+     *        ignored.
+     */
+    public void reduce(int[] c) {
+        int[] elements = this.distinct(c);
+        if (elements.length < 2) {
+            return;
+        }
+
+        this.structure.readLock().lock();
+        try {
+            Component component = this.componentOf[elements[0]];
+            boolean local = (component != null);
+            for (int i = 1; local && (i < elements.length); i++) {
+                local = (this.componentOf[elements[i]] == component);
+            }
+            if (local) {
+                synchronized (component) {
+                    this.reduce(component, elements);
+                }
+                return;
+            }
+        } finally {
+            this.structure.readLock().unlock();
+        }
+
+        // The constraint joins components, or takes in new elements
+        this.structure.writeLock().lock();
+        try {
+            this.reduce(this.join(elements), elements);
+        } finally {
+            this.structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the labels of a constraint in a new array, sorted and without
+     * repetitions.
+     */
+    private int[] distinct(int[] c) {
+        int[] elements = c.clone();
+        Arrays.sort(elements);
+        int k = 0;
+        for (int e : elements) {
+            if ((e < 0) || (e >= this.componentOf.length)) {
+                throw new IllegalArgumentException("Label " + e + " out of range");
+            }
+            if ((k == 0) || (elements[k - 1] != e)) {
+                elements[k++] = e;
+            }
+        }
+        return (k == elements.length) ? elements : Arrays.copyOf(elements, k);
+    }
+
+    /**
+     * Reduces the elements in their component, turning them into the labels
+     * of its tree in place.
+     */
+    private void reduce(Component component, int[] elements) {
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = this.labelOf[elements[i]];
+        }
+        component.tree.reduce(elements);
+        if (component.tree.hasRNode()) {
+            this.hasRNode = true;
+        }
+    }
+
+    /**
+     * Puts all the elements of a constraint in one component, grafting the
+     * other components into the largest one. The exclusive lock must be held.
+     *
+     * @return The component.
+     */
+    private Component join(int[] elements) {
+        Component largest = null;
+        for (int e : elements) {
+            Component component = this.componentOf[e];
+            if ((component != null) && ((largest == null) || (component.tree.size() > largest.tree.size()))) {
+                largest = component;
+            }
+        }
+        if (largest == null) {
+            largest = new Component();
+            this.components.add(largest);
+        }
+        // The elements of the largest component stay consecutive
+        largest.tree.enclose();
+
+        for (int e : elements) {
+            Component component = this.componentOf[e];
+            if (component == null) {
+                this.componentOf[e] = largest;
+                this.labelOf[e] = largest.addElement(e);
+            } else if (component != largest) {
+                int[] labels = new int[component.tree.size()];
+                for (int i = 0; i < labels.length; i++) {
+                    int x = component.elements[i];
+                    labels[i] = largest.addElement(x);
+                    this.componentOf[x] = largest;
+                    this.labelOf[x] = labels[i];
+                }
+                largest.tree.graft(component.tree, labels);
+                this.components.remove(component);
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Tells whether the constraints added so far have no valid ordering.
+     *
+     * @return true if some component has an R-node.
+     */
+    public boolean hasRNode() {
+        return this.hasRNode;
+    }
+
+    /**
+     * Returns the number of leaves in the tree.
+     *
+     * @return The number of leaves.
+     */
+    public int size() {
+        return this.componentOf.length;
+    }
+
+    /**
+     * Returns the number of components, which bounds how many reductions can
+     * run in parallel.
+     *
+     * @return The number of components with more than one element.
+     */
+    public int getComponentCount() {
+        this.structure.readLock().lock();
+        try {
+            return this.components.size();
+        } finally {
+            this.structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the whole tree into a PQRTree, waiting for the running
+     * reductions. Each component becomes a child of the root.
+     *
+     * @return The tree, sharing nothing with this one.
+     */
+    public PQRTree toPQRTree() {
+        this.structure.writeLock().lock();
+        try {
+            PQRTree t = new PQRTree(this.size());
+            for (Component component : this.components) {
+                t.graft(component.tree, Arrays.copyOf(component.elements, component.tree.size()));
+            }
+            return t;
+        } finally {
+            this.structure.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.toPQRTree().toString();
+    }
+}
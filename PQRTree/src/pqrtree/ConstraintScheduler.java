@@ -0,0 +1,187 @@
+package pqrtree;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the order in which a batch of constraints is added to a tree.
+ * <p>
+ * The final tree does not depend on the order of the constraints, but the
+ * amount of work done by each reduction does: how many gray nodes have to be
+ * repaired, and how many temporary nodes are created by
+ * PQRNode.transformPIntoQ() and PQRNode.joinBlackChildren(). All the
+ * strategies are stable, so constraints that tie keep their input order.
+ *
+ * @author Joao
+ */
+public class ConstraintScheduler {
+
+    /**
+     * The available scheduling strategies.
+     */
+    public enum Strategy {
+        /**
+         * Keep the input order.
+         */
+        INPUT_ORDER,
+        /**
+         * Smallest constraints first.
+         */
+        SIZE_ASCENDING,
+        /**
+         * Largest constraints first.
+         */
+        SIZE_DESCENDING,
+        /**
+         * Constraints sorted by the leftmost position of their elements in
+         * the frontier of the tree before the batch, so that consecutive
+         * reductions touch nearby parts of the tree.
+         */
+        FRONTIER_LOCALITY,
+        /**
+         * Constraints that share elements, directly or through other
+         * constraints, are grouped together. Groups are sorted by their first
+         * constraint.
+         */
+        SHARED_ELEMENTS;
+    }
+
+    private ConstraintScheduler() {
+        super();
+    }
+
+    /**
+     * Computes the order in which the constraints should be added.
+     *
+     * @param tree The tree the constraints will be added to. Only read by
+     *        FRONTIER_LOCALITY.
+     * @param constraints The constraints.
+     * @param strategy The strategy.
+     * @return The indices of the constraints, in the order they should be
+     *         added.
+     */
+    public static int[] order(PQRTree tree, int[][] constraints, Strategy strategy) {
+        int m = constraints.length;
+        int[] key = new int[m];
+
+        switch (strategy) {
+            case SIZE_ASCENDING:
+                for (int i = 0; i < m; i++) {
+                    key[i] = constraints[i].length;
+                }
+                break;
+
+            case SIZE_DESCENDING:
+                for (int i = 0; i < m; i++) {
+                    key[i] = -constraints[i].length;
+                }
+                break;
+
+            case FRONTIER_LOCALITY:
+                int[] frontier = tree.frontier();
+                int[] position = new int[tree.size()];
+                for (int k = 0; k < frontier.length; k++) {
+                    position[frontier[k]] = k;
+                }
+                for (int i = 0; i < m; i++) {
+                    int leftmost = Integer.MAX_VALUE;
+                    for (int x : constraints[i]) {
+                        leftmost = Math.min(leftmost, position[x]);
+                    }
+                    key[i] = leftmost;
+                }
+                break;
+
+            case SHARED_ELEMENTS:
+                groupBySharedElements(tree.size(), constraints, key);
+                break;
+
+            default:
+                break;
+        }
+
+        return sortByKey(key);
+    }
+
+    /**
+     * Adds a batch of constraints to a tree in the order given by a strategy.
+     *
+     * @param tree The tree.
+     * @param constraints The constraints.
+     * @param strategy The strategy.
+     */
+    public static void reduceAll(PQRTree tree, int[][] constraints, Strategy strategy) {
+        for (int i : order(tree, constraints, strategy)) {
+            tree.reduce(constraints[i]);
+        }
+    }
+
+    /**
+     * Sets the key of each constraint to the index of the first constraint of
+     * its group, where groups are the connected components of the relation
+     * "shares an element with".
+     *
+     * @param n The number of elements.
+     * @param constraints The constraints.
+     * @param key Receives the keys.
+     */
+    private static void groupBySharedElements(int n, int[][] constraints, int[] key) {
+        // Union-find over the elements
+        int[] parent = new int[n];
+        for (int x = 0; x < n; x++) {
+            parent[x] = x;
+        }
+        for (int[] c : constraints) {
+            for (int k = 1; k < c.length; k++) {
+                int a = find(parent, c[0]);
+                int b = find(parent, c[k]);
+                if (a != b) {
+                    parent[b] = a;
+                }
+            }
+        }
+
+        // The first constraint of each component names the group
+        int[] firstOfComponent = new int[n];
+        Arrays.fill(firstOfComponent, -1);
+        for (int i = 0; i < constraints.length; i++) {
+            if (constraints[i].length == 0) {
+                key[i] = i;
+                continue;
+            }
+            int a = find(parent, constraints[i][0]);
+            if (firstOfComponent[a] < 0) {
+                firstOfComponent[a] = i;
+            }
+            key[i] = firstOfComponent[a];
+        }
+    }
+
+    private static int find(int[] parent, int x) {
+        while (parent[x] != x) {
+            parent[x] = parent[parent[x]];
+            x = parent[x];
+        }
+        return x;
+    }
+
+    /**
+     * Stable sort of the indices 0 to key.length - 1 by key, done on packed
+     * primitive longs to avoid boxing.
+     *
+     * @param key The key of each index.
+     * @return The sorted indices.
+     */
+    private static int[] sortByKey(int[] key) {
+        long[] packed = new long[key.length];
+        for (int i = 0; i < key.length; i++) {
+            packed[i] = ((long) key[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+
+        int[] order = new int[key.length];
+        for (int i = 0; i < key.length; i++) {
+            order[i] = (int) packed[i];
+        }
+        return order;
+    }
+}
@@ -0,0 +1,252 @@
+package pqrtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A tree whose constraints can be removed as well as added.
+ * <p>
+ * The constraints are grouped into components: two constraints are in the
+ * same component if they share an element, directly or through other
+ * constraints of the component. The elements of a component are consecutive
+ * in every ordering, and no constraint relates them to other elements, so
+ * each component is a separate subtree hanging from a P-node root. Removing a
+ * constraint drops only the subtree of its component and adds the other
+ * constraints of the component again, which may split it. So a removal costs
+ * about the total size of the component, not the size of the tree.
+ * <p>
+ * The tree can be read through getTree(), but it must only be changed
+ * through this class.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * DynamicPQRTree dynamic = new DynamicPQRTree(n);
+ * long id = dynamic.add(new int[] {1, 2, 3});
+ * dynamic.remove(id);
+ * System.out.println(dynamic.getTree());
+ * </pre>
+ *
+ * @author Joao
+ */
+public class DynamicPQRTree {
+
+    /**
+     * A constraint that was added.
+     */
+    private static final class Constraint {
+
+        private final long id;
+        /**
+         * The elements, without repetitions.
+         */
+        private final int[] elements;
+
+        Constraint(long id, int[] elements) {
+            this.id = id;
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * A component: the constraints sharing elements, directly or not, and the
+     * elements they cover.
+     */
+    private static final class Component {
+
+        private final ArrayList<Constraint> constraints;
+        private int[] elements;
+        private int size;
+
+        Component() {
+            this.constraints = new ArrayList<>();
+            this.elements = new int[4];
+            this.size = 0;
+        }
+
+        void addElement(int e) {
+            if (this.size == this.elements.length) {
+                this.elements = Arrays.copyOf(this.elements, 2 * this.size);
+            }
+            this.elements[this.size++] = e;
+        }
+
+        /**
+         * The work of moving this component into another one.
+         */
+        int weight() {
+            return this.constraints.size() + this.size;
+        }
+    }
+
+    private final PQRTree tree;
+    private final HashMap<Long, Constraint> constraints;
+    private long nextId;
+
+    /**
+     * The component covering each element, or null.
+     */
+    private final Component[] componentOf;
+    /**
+     * The constraint that last saw each element, to drop repeated elements.
+     */
+    private final long[] seen;
+
+    /**
+     * Builds an universal tree with n leaves and no constraint.
+     *
+     * @param n The number of leaves.
+     */
+    public DynamicPQRTree(int n) {
+        super();
+
+        this.tree = new PQRTree(n);
+        this.constraints = new HashMap<>();
+        this.nextId = 0;
+        this.componentOf = new Component[n];
+        this.seen = new long[n];
+        Arrays.fill(this.seen, -1);
+    }
+
+    /**
+     * Adds a constraint.
+     *
+     * @param c The labels that must be consecutive. Repeated labels are
+     *        ignored.
+     * @return The id of the constraint, to remove it later.
+     */
+    public long add(int[] c) {
+        long id = this.nextId++;
+
+        int[] elements = new int[c.length];
+        int k = 0;
+        for (int e : c) {
+            if ((e < 0) || (e >= this.componentOf.length)) {
+                throw new IllegalArgumentException("Label " + e + " out of range");
+            }
+            if (this.seen[e] != id) {
+                this.seen[e] = id;
+                elements[k++] = e;
+            }
+        }
+
+        Constraint constraint = new Constraint(id, Arrays.copyOf(elements, k));
+        this.constraints.put(id, constraint);
+        this.place(constraint);
+        return id;
+    }
+
+    /**
+     * Removes a constraint. The tree becomes the one that the remaining
+     * constraints build.
+     *
+     * @param id The id of the constraint.
+     * @throws IllegalArgumentException If there is no constraint with that
+     *         id.
+     */
+    public void remove(long id) {
+        Constraint constraint = this.constraints.remove(id);
+        if (constraint == null) {
+            throw new IllegalArgumentException("Unknown constraint " + id);
+        }
+        if (constraint.elements.length < 2) {
+            return;
+        }
+
+        Component component = this.componentOf[constraint.elements[0]];
+        component.constraints.remove(constraint);
+
+        // Drop the subtree of the component and add its other constraints
+        // again, in the order they were first added
+        int[] elements = Arrays.copyOf(component.elements, component.size);
+        this.tree.release(elements);
+        for (int e : elements) {
+            this.componentOf[e] = null;
+        }
+        ArrayList<Constraint> others = component.constraints;
+        others.sort((a, b) -> Long.compare(a.id, b.id));
+        for (Constraint other : others) {
+            this.place(other);
+        }
+    }
+
+    /**
+     * Adds a constraint to the components and to the tree. The components it
+     * touches are merged, the smaller ones into the largest, so each element
+     * and constraint moves a logarithmic number of times.
+     */
+    private void place(Constraint constraint) {
+        int[] elements = constraint.elements;
+        if (elements.length < 2) {
+            return;
+        }
+
+        Component largest = null;
+        for (int e : elements) {
+            Component component = this.componentOf[e];
+            if ((component != null) && ((largest == null) || (component.weight() > largest.weight()))) {
+                largest = component;
+            }
+        }
+        if (largest == null) {
+            largest = new Component();
+        }
+
+        for (int e : elements) {
+            Component component = this.componentOf[e];
+            if (component == null) {
+                this.componentOf[e] = largest;
+                largest.addElement(e);
+            } else if (component != largest) {
+                for (int i = 0; i < component.size; i++) {
+                    this.componentOf[component.elements[i]] = largest;
+                    largest.addElement(component.elements[i]);
+                }
+                largest.constraints.addAll(component.constraints);
+            }
+        }
+        largest.constraints.add(constraint);
+
+        this.tree.reduce(elements);
+    }
+
+    /**
+     * Returns the tree of the current constraints. It must not be changed.
+     *
+     * @return The tree.
+     */
+    public PQRTree getTree() {
+        return this.tree;
+    }
+
+    /**
+     * Returns the number of constraints.
+     *
+     * @return The number of constraints added and not removed.
+     */
+    public int size() {
+        return this.constraints.size();
+    }
+
+    /**
+     * Returns the number of constraints in the component of a constraint,
+     * which bounds the work of removing it.
+     *
+     * @param id The id of the constraint.
+     * @return The number of constraints, or 0 if the constraint has less than
+     *         two elements.
+     * @throws IllegalArgumentException If there is no constraint with that
+     *         id.
+     */
+    public int getComponentSize(long id) {
+        Constraint constraint = this.constraints.get(id);
+        if (constraint == null) {
+            throw new IllegalArgumentException("Unknown constraint " + id);
+        }
+        if (constraint.elements.length < 2) {
+            return 0;
+        }
+        return this.componentOf[constraint.elements[0]].constraints.size();
+    }
+}
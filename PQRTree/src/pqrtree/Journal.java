@@ -0,0 +1,190 @@
+package pqrtree;
+
+import java.util.Arrays;
+
+/**
+ * An undo log for the structural fields of the nodes of a tree. While a
+ * reduction that may be aborted is running, every write to a structural field
+ * first saves the old value here, so the reduction can be rolled back by
+ * restoring the saved values in reverse order.
+ * <p>
+ * Colors, visit marks, pertinent counters and colored children lists are not
+ * saved: they are cleared by PQRTree.uncolor() after a rollback, like after
+ * any reduction.
+ * <p>
+ * A journal can also be sealed into a diff holding the new value of each
+ * field as well, which can be reverted and replayed any number of times. This
+ * is how PersistentPQRTree stores its versions.
+ *
+ * @author Joao
+ */
+final class Journal {
+
+    /*
+     * Codes of the saved fields. Fields holding nodes come first.
+     */
+    static final int PARENT = 0;
+    static final int REPRESENTANT = 1;
+    static final int SIBLING0 = 2;
+    static final int SIBLING1 = 3;
+    static final int FIRST_CHILD = 4;
+    static final int LAST_CHILD = 5;
+    static final int REPRESENTATIVE_CHILD = 6;
+    static final int RANK = 7;
+    static final int CHILD_COUNT = 8;
+    static final int TYPE = 9;
+    static final int DELETED = 10;
+
+    /**
+     * The node whose field was written, for each entry.
+     */
+    private Node[] target;
+    /**
+     * The code of the field written, for each entry.
+     */
+    private byte[] field;
+    /**
+     * The old value of the field, for each entry on a node field.
+     */
+    private Node[] oldNode;
+    /**
+     * The old value of the field, for each entry on an int field.
+     */
+    private int[] oldInt;
+    /**
+     * The new value of the field, for each entry on a node field, once the
+     * journal is sealed.
+     */
+    private Node[] newNode;
+    /**
+     * The new value of the field, for each entry on an int field, once the
+     * journal is sealed.
+     */
+    private int[] newInt;
+    /**
+     * The number of entries.
+     */
+    private int size;
+
+    Journal() {
+        super();
+
+        this.target = new Node[64];
+        this.field = new byte[64];
+        this.oldNode = new Node[64];
+        this.oldInt = new int[64];
+        this.newNode = null;
+        this.newInt = null;
+        this.size = 0;
+    }
+
+    /**
+     * Saves the current value of a field of a node.
+     * 
+     * @param v The node about to be written.
+     * @param f The code of the field about to be written.
+     */
+    void save(Node v, int f) {
+        if (this.size == this.target.length) {
+            int capacity = 2 * this.size;
+            this.target = Arrays.copyOf(this.target, capacity);
+            this.field = Arrays.copyOf(this.field, capacity);
+            this.oldNode = Arrays.copyOf(this.oldNode, capacity);
+            this.oldInt = Arrays.copyOf(this.oldInt, capacity);
+        }
+
+        this.target[this.size] = v;
+        this.field[this.size] = (byte) f;
+        if (f < RANK) {
+            this.oldNode[this.size] = v.readNodeField(f);
+        } else {
+            this.oldInt[this.size] = v.readIntField(f);
+        }
+        this.size++;
+    }
+
+    /**
+     * Restores every saved field, newest first, and empties the journal.
+     */
+    void undo() {
+        this.revert();
+        this.clear();
+    }
+
+    /**
+     * Restores every saved field, newest first, keeping the entries.
+     */
+    void revert() {
+        for (int k = this.size - 1; k >= 0; k--) {
+            int f = this.field[k];
+            if (f < RANK) {
+                this.target[k].writeNodeField(f, this.oldNode[k]);
+            } else {
+                this.target[k].writeIntField(f, this.oldInt[k]);
+            }
+        }
+    }
+
+    /**
+     * Writes the new value of every field of a sealed journal, oldest first,
+     * redoing what revert() undid.
+     */
+    void replay() {
+        for (int k = 0; k < this.size; k++) {
+            int f = this.field[k];
+            if (f < RANK) {
+                this.target[k].writeNodeField(f, this.newNode[k]);
+            } else {
+                this.target[k].writeIntField(f, this.newInt[k]);
+            }
+        }
+    }
+
+    /**
+     * Moves the entries into a sealed journal of their exact size, along with
+     * the current value of each field, and empties this one. A field written
+     * many times gets its last value in every entry, which replay() writes
+     * last anyway.
+     *
+     * @return The sealed journal.
+     */
+    Journal seal() {
+        Journal sealed = new Journal();
+        sealed.target = Arrays.copyOf(this.target, this.size);
+        sealed.field = Arrays.copyOf(this.field, this.size);
+        sealed.oldNode = Arrays.copyOf(this.oldNode, this.size);
+        sealed.oldInt = Arrays.copyOf(this.oldInt, this.size);
+        sealed.newNode = new Node[this.size];
+        sealed.newInt = new int[this.size];
+        for (int k = 0; k < this.size; k++) {
+            int f = this.field[k];
+            if (f < RANK) {
+                sealed.newNode[k] = this.target[k].readNodeField(f);
+            } else {
+                sealed.newInt[k] = this.target[k].readIntField(f);
+            }
+        }
+        sealed.size = this.size;
+
+        this.clear();
+        return sealed;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return The number of fields saved.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Empties the journal, keeping the changes.
+     */
+    void clear() {
+        Arrays.fill(this.target, 0, this.size, null);
+        Arrays.fill(this.oldNode, 0, this.size, null);
+        this.size = 0;
+    }
+}
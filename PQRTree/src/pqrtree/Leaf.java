@@ -18,6 +18,15 @@ class Leaf extends Node {
         this.value = i;
     }
 
+    /**
+     * Returns the label of the leaf.
+     * 
+     * @return The leaf label.
+     */
+    int getValue() {
+        return this.value;
+    }
+
     @Override
     /**
      * Returns a string representation of the leaf. It is simply the string
@@ -0,0 +1,163 @@
+package pqrtree;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to non-negative int values, without boxing.
+ * <p>
+ * It uses open addressing with linear probing. A slot is free when its value
+ * is negative, so negative values cannot be stored. Entries cannot be removed.
+ *
+ * @author Joao
+ */
+public class LongIntMap {
+
+    /**
+     * Returned by get() for keys that are not in the map.
+     */
+    public static final int NO_VALUE = -1;
+
+    /**
+     * The keys, indexed by slot.
+     */
+    private long[] keys;
+    /**
+     * The values, indexed by slot. Free slots hold NO_VALUE.
+     */
+    private int[] values;
+    /**
+     * The number of entries in the map.
+     */
+    private int size;
+
+    /**
+     * Builds an empty map.
+     *
+     * @param expectedSize The number of entries the map should hold without
+     *        having to grow.
+     */
+    public LongIntMap(int expectedSize) {
+        super();
+
+        int capacity = 16;
+        while (capacity < 2 * expectedSize) {
+            capacity *= 2;
+        }
+
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(this.values, NO_VALUE);
+        this.size = 0;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the map.
+     *
+     * @return The estimated number of bytes.
+     */
+    long estimateBytes() {
+        return 48 + 12L * this.keys.length;
+    }
+
+    /**
+     * Spreads the bits of a key over the whole int range (the finalizer of
+     * MurmurHash3).
+     *
+     * @param key A key.
+     * @return The hash of the key.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Finds the slot holding a key, or the free slot where it would be
+     * inserted.
+     *
+     * @param key A key.
+     * @return The slot index.
+     */
+    private int slot(long key) {
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+        while ((this.values[i] != NO_VALUE) && (this.keys[i] != key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the value associated with a key.
+     *
+     * @param key A key.
+     * @return The value of the key, or NO_VALUE if the key is not in the map.
+     */
+    public int get(long key) {
+        return this.values[this.slot(key)];
+    }
+
+    /**
+     * Associates a value with a key, replacing any previous value.
+     *
+     * @param key A key.
+     * @param value A non-negative value.
+     */
+    public void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative values cannot be stored: " + value);
+        }
+
+        int i = this.slot(key);
+        if (this.values[i] == NO_VALUE) {
+            this.size++;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+
+        if (2 * this.size > this.keys.length) {
+            this.grow();
+        }
+    }
+
+    /**
+     * Doubles the capacity of the map, rehashing every entry.
+     */
+    private void grow() {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+
+        this.keys = new long[2 * oldKeys.length];
+        this.values = new int[2 * oldValues.length];
+        Arrays.fill(this.values, NO_VALUE);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int j = this.slot(oldKeys[i]);
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in the map.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Removes every entry from the map.
+     */
+    public void clear() {
+        Arrays.fill(this.values, NO_VALUE);
+        this.size = 0;
+    }
+}
@@ -3,9 +3,15 @@ package pqrtree;
 abstract class Node {
 
     /**
-     * Stores the color of the node when it is defined.
+     * All the colors, indexed by ordinal.
      */
-    private Color color;
+    private static final Color[] COLORS = Color.values();
+
+    /**
+     * Stores the ordinal of the color of the node when it is defined. A byte
+     * is enough and packs together with the other small fields.
+     */
+    private byte color;
 
     /**
      * The parent of the node. It is only set if the parent is a P-node or
@@ -21,18 +27,27 @@ abstract class Node {
     private Node representant;
     /**
      * Rank of the node in the union-find tree. It is zero if the node is not
-     * part of a union-find structure.
+     * part of a union-find structure. Union by rank keeps it below 64.
+     */
+    private byte rank;
+
+    /**
+     * The two immediate siblings of this node. This forms a symmetric list. No
+     * assumption at all can be made from siblings. The only way of knowing
+     * which is "previous" and which is "next" is while traversing the list.
+     * "Previous" is the one the traversal came from, "next" is the opposite.
+     * They are plain fields rather than an array to save the array object.
      */
-    private int rank;
+    Node sibling0;
+    Node sibling1;
 
     /**
-     * Holds the two immediate siblings of this node. This forms a symmetric 
-     * list. No assumption at all can be made from siblings. The only way of
-     * knowing which is "previous" and which is "next" is while traversing the
-     * list. "Previous" is the one the traversal came from, "next" is the
-     * opposite.
+     * The next node in the gray or black children list of the parent of this
+     * node. The colored lists are threaded through the children themselves, so
+     * adding to them allocates nothing. A node is in at most one colored list
+     * at a time.
      */
-    protected Node sibling[];
+    Node nextColored;
 
     /**
      * Marks whether the node has been visited during the reduction.
@@ -50,21 +65,53 @@ abstract class Node {
     Node() {
         super();
 
-        this.color = Color.WHITE;
+        this.color = (byte) Color.WHITE.ordinal();
 
         this.parent = null;
         this.representant = this;
         this.rank = 0;
 
-        this.sibling = new Node[2];
+        this.sibling0 = null;
+        this.sibling1 = null;
+        this.nextColored = null;
 
         this.visited = false;
         this.pertinentChildCount = 0;
         this.pertinentLeafCount = 0;
     }
 
+    /**
+     * Puts a detached node back in the state it had right after being built.
+     */
+    void reset() {
+        this.cleanUp();
+
+        this.parent = null;
+        this.representant = this;
+        this.rank = 0;
+
+        this.sibling0 = null;
+        this.sibling1 = null;
+        this.nextColored = null;
+    }
+
+    /**
+     * Returns the sibling of this node that is not the given one. Used to walk
+     * the symmetric sibling list.
+     * 
+     * @param previous The sibling the traversal came from (or null).
+     * @return The next sibling in the traversal.
+     */
+    Node nextSibling(Node previous) {
+        if (this.sibling0 == previous) {
+            return this.sibling1;
+        } else {
+            return this.sibling0;
+        }
+    }
+
     Color getColor() {
-        return color;
+        return COLORS[this.color];
     }
 
     /**
@@ -75,7 +122,14 @@ abstract class Node {
      */
     private Node find() {
         if (this.representant != this) {
-            this.representant = this.representant.find();
+            Node r = this.representant.find();
+            if (r != this.representant) {
+                // Path compression is undone with the unions it went through
+                if (r.parent != null) {
+                    r.parent.save(this, Journal.REPRESENTANT);
+                }
+                this.representant = r;
+            }
         }
         return this.representant;
     }
@@ -89,7 +143,7 @@ abstract class Node {
     }
 
     void setColor(Color color) {
-        this.color = color;
+        this.color = (byte) color.ordinal();
 
         if (color == Color.GRAY) {
             this.getParent().addGrayChild(this);
@@ -100,6 +154,11 @@ abstract class Node {
     }
 
     void setParent(PQRNode parent) {
+        if (parent != null) {
+            parent.save(this, Journal.PARENT);
+            parent.save(this, Journal.REPRESENTANT);
+        }
+
         if (parent == null) {
             this.parent = null;
             this.representant = this;
@@ -115,10 +174,30 @@ abstract class Node {
         }
     }
 
+    /**
+     * Changes the color of the node without adding it to the colored lists of
+     * its parent.
+     * 
+     * @param color The new color.
+     */
+    void recolor(Color color) {
+        this.color = (byte) color.ordinal();
+    }
+
     void setRepresentant(Node v) {
         this.representant = v;
     }
 
+    /**
+     * Sets the parent of this node, which must be the representant of the
+     * union-find structure of the children of that parent.
+     * 
+     * @param parent The parent of the union-find structure.
+     */
+    void setRepresentativeParent(PQRNode parent) {
+        this.parent = parent;
+    }
+
     int getRank() {
         return this.rank;
     }
@@ -127,6 +206,83 @@ abstract class Node {
         this.rank += 1;
     }
 
+    /**
+     * Returns the value of a field holding a node, for the journal.
+     * 
+     * @param field The code of the field.
+     * @return The current value.
+     * @see Journal
+     */
+    Node readNodeField(int field) {
+        switch (field) {
+            case Journal.PARENT:
+                return this.parent;
+            case Journal.REPRESENTANT:
+                return this.representant;
+            case Journal.SIBLING0:
+                return this.sibling0;
+            case Journal.SIBLING1:
+                return this.sibling1;
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    /**
+     * Restores the value of a field holding a node, for the journal.
+     * 
+     * @param field The code of the field.
+     * @param v The value.
+     * @see Journal
+     */
+    void writeNodeField(int field, Node v) {
+        switch (field) {
+            case Journal.PARENT:
+                this.parent = (PQRNode) v;
+                break;
+            case Journal.REPRESENTANT:
+                this.representant = v;
+                break;
+            case Journal.SIBLING0:
+                this.sibling0 = v;
+                break;
+            case Journal.SIBLING1:
+                this.sibling1 = v;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    /**
+     * Returns the value of an int field, for the journal.
+     * 
+     * @param field The code of the field.
+     * @return The current value.
+     * @see Journal
+     */
+    int readIntField(int field) {
+        if (field == Journal.RANK) {
+            return this.rank;
+        }
+        throw new IllegalArgumentException("Unknown field " + field);
+    }
+
+    /**
+     * Restores the value of an int field, for the journal.
+     * 
+     * @param field The code of the field.
+     * @param value The value.
+     * @see Journal
+     */
+    void writeIntField(int field, int value) {
+        if (field == Journal.RANK) {
+            this.rank = (byte) value;
+        } else {
+            throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
     /**
      * Tests whether every children of the node are colored black. A leaf
      * has no children, so it always tests true.
@@ -137,7 +293,7 @@ abstract class Node {
     abstract boolean areAllChildrenBlack();
 
     void cleanUp() {
-        this.color = Color.WHITE;
+        this.color = (byte) Color.WHITE.ordinal();
         this.visited = false;
         this.pertinentChildCount = 0;
         this.pertinentLeafCount = 0;
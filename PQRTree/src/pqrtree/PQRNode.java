@@ -1,9 +1,14 @@
 package pqrtree;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 
 class PQRNode extends Node {
 
+    /**
+     * The tree this node belongs to.
+     */
+    private final PQRTree owner;
+
     /**
      * The first child of the node.
      */
@@ -23,9 +28,19 @@ class PQRNode extends Node {
     private int childCount;
 
     /**
-     * The type of the node --- P, Q or R.
+     * All the types, indexed by ordinal.
      */
-    private PQRType type;
+    private static final PQRType[] TYPES = PQRType.values();
+    /**
+     * The brackets of each type in the string representation, by ordinal.
+     */
+    private static final Character[] OPEN = {'(', '[', '{'};
+    private static final Character[] CLOSE = {')', ']', '}'};
+
+    /**
+     * The ordinal of the type of the node --- P, Q or R.
+     */
+    private byte type;
     /**
      * Whether the node has been deleted from the tree.
      * Nodes can be removed from the tree but still be needed for the union-find
@@ -35,27 +50,43 @@ class PQRNode extends Node {
     private boolean deleted;
 
     /**
-     * A list that stores the gray children of the node.
+     * First and last gray children of the node. The gray children form a FIFO
+     * list linked through Node.nextColored.
+     */
+    private Node grayHead;
+    private Node grayTail;
+    /**
+     * First and last black children of the node, linked the same way.
      */
-    private final LinkedList<Node> grayChildren;
+    private Node blackHead;
+    private Node blackTail;
     /**
-     * A list that stores the black children of the node.
+     * Number of nodes in the black children list.
      */
-    private final LinkedList<Node> blackChildren;
+    private int blackCount;
 
-    PQRNode(PQRType type) {
+    PQRNode(PQRType type, PQRTree owner) {
         super();
 
+        this.owner = owner;
+        owner.countNode(type, 1);
+        if (owner.getFeed() != null) {
+            owner.getFeed().created(this, type);
+        }
+
         this.firstChild = null;
         this.lastChild = null;
         this.representativeChild = null;
         this.childCount = 0;
 
-        this.type = type;
+        this.type = (byte) type.ordinal();
         this.deleted = false;
 
-        this.grayChildren = new LinkedList<>();
-        this.blackChildren = new LinkedList<>();
+        this.grayHead = null;
+        this.grayTail = null;
+        this.blackHead = null;
+        this.blackTail = null;
+        this.blackCount = 0;
     }
 
     /**
@@ -64,7 +95,7 @@ class PQRNode extends Node {
      * @return The type of the node.
      */
     PQRType getType() {
-        return type;
+        return TYPES[this.type];
     }
 
     /**
@@ -73,7 +104,57 @@ class PQRNode extends Node {
      * @param type The new type for the node.
      */
     void setType(PQRType type) {
-        this.type = type;
+        this.save(this, Journal.TYPE);
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().retyped(this, type);
+        }
+        this.owner.countNode(this.getType(), -1);
+        this.owner.countNode(type, 1);
+        this.type = (byte) type.ordinal();
+    }
+
+    /**
+     * Saves a field of a node in the journal of the tree, if the running
+     * reduction may be aborted.
+     * 
+     * @param v The node about to be written.
+     * @param field The code of the field.
+     * @see Journal
+     */
+    void save(Node v, int field) {
+        Journal journal = this.owner.getJournal();
+        if (journal != null) {
+            journal.save(v, field);
+        }
+        ChangeFeed feed = this.owner.getFeed();
+        if (feed != null) {
+            feed.saved(v, field);
+        }
+    }
+
+    private void setSibling0(Node v, Node s) {
+        this.save(v, Journal.SIBLING0);
+        v.sibling0 = s;
+    }
+
+    private void setSibling1(Node v, Node s) {
+        this.save(v, Journal.SIBLING1);
+        v.sibling1 = s;
+    }
+
+    private void setFirstChild(Node v) {
+        this.save(this, Journal.FIRST_CHILD);
+        this.firstChild = v;
+    }
+
+    private void setLastChild(Node v) {
+        this.save(this, Journal.LAST_CHILD);
+        this.lastChild = v;
+    }
+
+    private void setChildCount(int n) {
+        this.save(this, Journal.CHILD_COUNT);
+        this.childCount = n;
     }
 
     boolean isDeleted() {
@@ -89,19 +170,79 @@ class PQRNode extends Node {
     }
 
     void setRepresentativeChild(Node v) {
+        this.save(this, Journal.REPRESENTATIVE_CHILD);
         this.representativeChild = v;
     }
 
     void addGrayChild(Node node) {
-        this.grayChildren.add(node);
+        node.nextColored = null;
+        if (this.grayTail == null) {
+            this.grayHead = node;
+        } else {
+            this.grayTail.nextColored = node;
+        }
+        this.grayTail = node;
     }
 
     void addBlackChild(Node node) {
-        this.blackChildren.add(node);
+        node.nextColored = null;
+        if (this.blackTail == null) {
+            this.blackHead = node;
+        } else {
+            this.blackTail.nextColored = node;
+        }
+        this.blackTail = node;
+        this.blackCount++;
+    }
+
+    /**
+     * Removes the first node of the gray children list.
+     * 
+     * @return The removed node, or null if the list is empty.
+     */
+    private Node pollGrayChild() {
+        Node v = this.grayHead;
+        if (v != null) {
+            this.grayHead = v.nextColored;
+            if (this.grayHead == null) {
+                this.grayTail = null;
+            }
+            v.nextColored = null;
+        }
+        return v;
+    }
+
+    /**
+     * Removes the first node of the black children list.
+     * 
+     * @return The removed node, or null if the list is empty.
+     */
+    private Node pollBlackChild() {
+        Node v = this.blackHead;
+        if (v != null) {
+            this.blackHead = v.nextColored;
+            if (this.blackHead == null) {
+                this.blackTail = null;
+            }
+            v.nextColored = null;
+            this.blackCount--;
+        }
+        return v;
+    }
+
+    private void clearGrayChildren() {
+        this.grayHead = null;
+        this.grayTail = null;
+    }
+
+    private void clearBlackChildren() {
+        this.blackHead = null;
+        this.blackTail = null;
+        this.blackCount = 0;
     }
 
     PQRNode getGrayChild() {
-        return (PQRNode) this.grayChildren.poll();
+        return (PQRNode) this.pollGrayChild();
     }
 
     /**
@@ -123,35 +264,38 @@ class PQRNode extends Node {
      * @param v The node to be added as a child.
      */
     void insertBeginning(Node v) {
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().moved(v, this);
+        }
         v.setParent(this);
-        v.sibling[1] = this.firstChild;
-        this.childCount++;
+        this.setSibling1(v, this.firstChild);
+        this.setChildCount(this.childCount + 1);
 
         // If this had at least a child already
         if (this.firstChild != null) {
             // Attach v to the former first child where the sibling list ended
-            if (this.firstChild.sibling[0] == null) {
-                this.firstChild.sibling[0] = v;
+            if (this.firstChild.sibling0 == null) {
+                this.setSibling0(this.firstChild, v);
             } else {
-                this.firstChild.sibling[1] = v;
+                this.setSibling1(this.firstChild, v);
             }
         }
 
         // If v is the only child, it is also the last
         if (this.getChildCount() == 1) {
-            this.lastChild = v;
+            this.setLastChild(v);
             if (this.getType() != PQRType.P) {
                 this.setRepresentativeChild(v);
             }
         }
 
-        this.firstChild = v;
+        this.setFirstChild(v);
 
         if (v.getColor() == Color.BLACK) {
-            this.blackChildren.add(v);
+            this.addBlackChild(v);
         }
         if (v.getColor() == Color.GRAY) {
-            this.grayChildren.add(v);
+            this.addGrayChild(v);
         }
     }
 
@@ -165,35 +309,38 @@ class PQRNode extends Node {
      * @see PQRNode#insertBeginning(pqrtree.Node) 
      */
     void insertEnd(Node v) {
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().moved(v, this);
+        }
         v.setParent(this);
-        v.sibling[0] = this.lastChild;
-        this.childCount++;
+        this.setSibling0(v, this.lastChild);
+        this.setChildCount(this.childCount + 1);
 
         // If this had at least a child already
         if (this.lastChild != null) {
             // Attach v to the former first child where the sibling list ended
-            if (this.lastChild.sibling[0] == null) {
-                this.lastChild.sibling[0] = v;
+            if (this.lastChild.sibling0 == null) {
+                this.setSibling0(this.lastChild, v);
             } else {
-                this.lastChild.sibling[1] = v;
+                this.setSibling1(this.lastChild, v);
             }
         }
 
         // If v is the only child, it is also the first
         if (this.getChildCount() == 1) {
-            this.firstChild = v;
+            this.setFirstChild(v);
             if (this.getType() != PQRType.P) {
                 this.setRepresentativeChild(v);
             }
         }
 
-        this.lastChild = v;
+        this.setLastChild(v);
 
         if (v.getColor() == Color.BLACK) {
-            this.blackChildren.add(v);
+            this.addBlackChild(v);
         }
         if (v.getColor() == Color.GRAY) {
-            this.grayChildren.add(v);
+            this.addGrayChild(v);
         }
     }
 
@@ -208,40 +355,43 @@ class PQRNode extends Node {
      * @see PQRNode#insertBeginning(pqrtree.Node) 
      */
     void insertBetween(Node v, Node i, Node j) {
-        v.sibling[0] = i;
-        v.sibling[1] = j;
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().moved(v, this);
+        }
+        this.setSibling0(v, i);
+        this.setSibling1(v, j);
 
         if (i == null) {
             if (j == this.firstChild) {
-                this.firstChild = v;
+                this.setFirstChild(v);
             } else {
-                this.lastChild = v;
+                this.setLastChild(v);
             }
-        } else if (i.sibling[0] == j) {
-            i.sibling[0] = v;
+        } else if (i.sibling0 == j) {
+            this.setSibling0(i, v);
         } else {
-            i.sibling[1] = v;
+            this.setSibling1(i, v);
         }
 
         if (j == null) {
             if (i == this.firstChild) {
-                this.firstChild = v;
+                this.setFirstChild(v);
             } else {
-                this.lastChild = v;
+                this.setLastChild(v);
             }
-        } else if (j.sibling[0] == i) {
-            j.sibling[0] = v;
+        } else if (j.sibling0 == i) {
+            this.setSibling0(j, v);
         } else {
-            j.sibling[1] = v;
+            this.setSibling1(j, v);
         }
 
         v.setParent(this);
-        this.childCount++;
+        this.setChildCount(this.childCount + 1);
 
         if (v.getColor() == Color.BLACK) {
-            this.blackChildren.add(v);
+            this.addBlackChild(v);
         } else if (v.getColor() == Color.GRAY) {
-            this.grayChildren.add(v);
+            this.addGrayChild(v);
         }
     }
 
@@ -251,51 +401,70 @@ class PQRNode extends Node {
      * @param v A child of this node.
      */
     void removeChild(Node v) {
-        this.childCount--;
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().moved(v, null);
+        }
+        this.setChildCount(this.childCount - 1);
 
-        Node v0 = v.sibling[0];
-        Node v1 = v.sibling[1];
+        Node v0 = v.sibling0;
+        Node v1 = v.sibling1;
 
         if (v0 == null) {
             if (this.firstChild == v) {
-                this.firstChild = v1;
+                this.setFirstChild(v1);
             }
             if (this.lastChild == v) {
-                this.lastChild = v1;
+                this.setLastChild(v1);
             }
-        } else if (v0.sibling[0] == v) {
-            v0.sibling[0] = v1;
+        } else if (v0.sibling0 == v) {
+            this.setSibling0(v0, v1);
         } else {
-            v0.sibling[1] = v1;
+            this.setSibling1(v0, v1);
         }
 
         if (v1 == null) {
             if (this.firstChild == v) {
-                this.firstChild = v0;
+                this.setFirstChild(v0);
             }
             if (this.lastChild == v) {
-                this.lastChild = v0;
+                this.setLastChild(v0);
             }
-        } else if (v1.sibling[0] == v) {
-            v1.sibling[0] = v0;
+        } else if (v1.sibling0 == v) {
+            this.setSibling0(v1, v0);
         } else {
-            v1.sibling[1] = v0;
+            this.setSibling1(v1, v0);
         }
 
-        v.sibling[0] = null;
-        v.sibling[1] = null;
+        this.setSibling0(v, null);
+        this.setSibling1(v, null);
     }
 
     /**
      * Remove the node from its parent and mark it as deleted. Nodes are not 
      * actually destroyed because they might be part of a union-find tree.
      */
-    private void destroy() {
+    void destroy() {
         PQRNode p = this.getParent();
+        this.owner.countDestroyed(this, (p != null) && (p.getType() != PQRType.P));
         if (p != null) {
             p.removeChild(this);
         }
+        this.save(this, Journal.DELETED);
+        this.deleted = true;
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().destroyed(this);
+        }
+    }
+
+    /**
+     * Marks the node as deleted when its whole subtree is dropped at once. The
+     * node must have no parent and no children left. It is not counted here.
+     */
+    void drop() {
         this.deleted = true;
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().destroyed(this);
+        }
     }
 
     /**
@@ -303,8 +472,8 @@ class PQRNode extends Node {
      */
     private void reverse() {
         Node tmp = this.firstChild;
-        this.firstChild = this.lastChild;
-        this.lastChild = tmp;
+        this.setFirstChild(this.lastChild);
+        this.setLastChild(tmp);
     }
 
     /*
@@ -313,12 +482,12 @@ class PQRNode extends Node {
      ************************************
      */
     void joinBlackChildren() {
-        if ((this.blackChildren.size() > 1) && (this.blackChildren.size() < this.getChildCount())) {
-            PQRNode b = new PQRNode(PQRType.P);
+        if ((this.blackCount > 1) && (this.blackCount < this.getChildCount())) {
+            PQRNode b = new PQRNode(PQRType.P, this.owner);
             b.visit();
             this.insertChild(b);
-            while (!this.blackChildren.isEmpty()) {
-                Node bi = this.blackChildren.poll();
+            while (this.blackHead != null) {
+                Node bi = this.pollBlackChild();
                 this.removeChild(bi);
                 b.insertEnd(bi);
             }
@@ -328,34 +497,33 @@ class PQRNode extends Node {
 
     PQRNode transformPIntoQ(PQRNode r) {
         // Create gray node g of type Q child of r after v
-        PQRNode g = new PQRNode(PQRType.Q);
+        PQRNode g = new PQRNode(PQRType.Q, this.owner);
         g.visit();
-        r.insertBetween(g, this, this.sibling[0]);
-        g.setColor(Color.GRAY);
-        r.grayChildren.removeLast();
+        r.insertBetween(g, this, this.sibling0);
+        g.recolor(Color.GRAY);
 
         // Move black children
-        if (this.blackChildren.size() > 1) {
-            PQRNode b = new PQRNode(PQRType.P);
+        if (this.blackCount > 1) {
+            PQRNode b = new PQRNode(PQRType.P, this.owner);
             b.visit();
             g.insertEnd(b);
-            while (!this.blackChildren.isEmpty()) {
-                Node bi = this.blackChildren.poll();
+            while (this.blackHead != null) {
+                Node bi = this.pollBlackChild();
                 this.removeChild(bi);
                 b.insertEnd(bi);
             }
             b.setColor(Color.BLACK);
         } else {
-            while (!this.blackChildren.isEmpty()) {
-                Node bi = this.blackChildren.poll();
+            while (this.blackHead != null) {
+                Node bi = this.pollBlackChild();
                 this.removeChild(bi);
                 g.insertEnd(bi);
             }
         }
 
         // Move gray children
-        while (!this.grayChildren.isEmpty()) {
-            Node gi = this.grayChildren.poll();
+        while (this.grayHead != null) {
+            Node gi = this.pollGrayChild();
             this.removeChild(gi);
             g.insertEnd(gi);
         }
@@ -385,15 +553,15 @@ class PQRNode extends Node {
         }
 
         // Move black child
-        while (!this.blackChildren.isEmpty()) {
-            Node bi = this.blackChildren.poll();
+        while (this.blackHead != null) {
+            Node bi = this.pollBlackChild();
             this.removeChild(bi);
             v.insertBeginning(bi);
         }
 
         // Move gray children
-        while (!this.grayChildren.isEmpty()) {
-            Node gi = this.grayChildren.poll();
+        while (this.grayHead != null) {
+            Node gi = this.pollGrayChild();
             if (gi != v) {
                 this.removeChild(gi);
                 v.insertBeginning(gi);
@@ -401,44 +569,54 @@ class PQRNode extends Node {
         }
 
         v.setColor(Color.WHITE); // v is now the LCA
-        this.grayChildren.clear();
+        this.clearGrayChildren();
 
+        // v takes the place of this node, which matters if the parent is a Q-node
         if (this.getChildCount() == 1) {
             this.removeChild(v);
             if (this.getParent() != null) {
-                this.getParent().insertEnd(v);
+                this.getParent().insertBetween(v, this, this.sibling0);
             }
             this.destroy();
         }
     }
 
-    private Node getFirstChild() {
+    Node getFirstChild() {
         return this.firstChild;
     }
 
-    private Node getLastChild() {
+    Node getLastChild() {
         return this.lastChild;
     }
 
     void mergeIntoLCA() {
         PQRNode r = this.getParent();
+        if (this.owner.getFeed() != null) {
+            this.owner.getFeed().merged(this, r);
+        }
 
         // Union
         Node thisRep = this.getRepresentativeChild();
         Node rRep = r.getRepresentativeChild();
         if (thisRep.getRank() > rRep.getRank()) {
+            this.save(rRep, Journal.REPRESENTANT);
             rRep.setRepresentant(thisRep);
             r.setRepresentativeChild(thisRep);
+            this.save(thisRep, Journal.PARENT);
+            thisRep.setRepresentativeParent(r);
         } else { // thisRep and rRep are always different
+            this.save(thisRep, Journal.REPRESENTANT);
             thisRep.setRepresentant(rRep);
             if (thisRep.getRank() == rRep.getRank()) {
+                this.save(rRep, Journal.RANK);
                 rRep.incRank();
+                this.owner.countRank(rRep.getRank());
             }
         }
 
         // Get the siblings
-        Node outLighter = this.sibling[0];
-        Node outDarker = this.sibling[1];
+        Node outLighter = this.sibling0;
+        Node outDarker = this.sibling1;
         if ((outDarker == null)
                 || ((outLighter != null) && (outLighter.getColor().ordinal() > outDarker.getColor().ordinal()))) {
             Node tmp = outDarker;
@@ -450,87 +628,118 @@ class PQRNode extends Node {
         Node leftChild = this.getFirstChild();
         Node rightChild = this.getLastChild();
         if (leftChild.getColor().ordinal() < rightChild.getColor().ordinal()) {
-            if (leftChild.sibling[0] == null) {
-                leftChild.sibling[0] = outLighter;
+            if (leftChild.sibling0 == null) {
+                this.setSibling0(leftChild, outLighter);
             } else {
-                leftChild.sibling[1] = outLighter;
+                this.setSibling1(leftChild, outLighter);
             }
 
             if (outLighter != null) {
-                if (outLighter.sibling[0] == this) {
-                    outLighter.sibling[0] = leftChild;
+                if (outLighter.sibling0 == this) {
+                    this.setSibling0(outLighter, leftChild);
                 } else {
-                    outLighter.sibling[1] = leftChild;
+                    this.setSibling1(outLighter, leftChild);
                 }
+            } else if (r.firstChild == this) {
+                r.setFirstChild(leftChild);
             } else {
-                r.firstChild = leftChild;
+                r.setLastChild(leftChild);
             }
 
-            if (rightChild.sibling[0] == null) {
-                rightChild.sibling[0] = outDarker;
+            if (rightChild.sibling0 == null) {
+                this.setSibling0(rightChild, outDarker);
             } else {
-                rightChild.sibling[1] = outDarker;
+                this.setSibling1(rightChild, outDarker);
             }
 
             // outDarker should never be null
-            if (outDarker.sibling[0] == this) {
-                outDarker.sibling[0] = rightChild;
+            if (outDarker.sibling0 == this) {
+                this.setSibling0(outDarker, rightChild);
             } else {
-                outDarker.sibling[1] = rightChild;
+                this.setSibling1(outDarker, rightChild);
             }
         } else {
-            if (rightChild.sibling[0] == null) {
-                rightChild.sibling[0] = outLighter;
+            if (rightChild.sibling0 == null) {
+                this.setSibling0(rightChild, outLighter);
             } else {
-                rightChild.sibling[1] = outLighter;
+                this.setSibling1(rightChild, outLighter);
             }
 
             if (outLighter != null) {
-                if (outLighter.sibling[0] == this) {
-                    outLighter.sibling[0] = rightChild;
+                if (outLighter.sibling0 == this) {
+                    this.setSibling0(outLighter, rightChild);
                 } else {
-                    outLighter.sibling[1] = rightChild;
+                    this.setSibling1(outLighter, rightChild);
                 }
+            } else if (r.firstChild == this) {
+                r.setFirstChild(rightChild);
             } else {
-                r.firstChild = rightChild;
+                r.setLastChild(rightChild);
             }
 
-            if (leftChild.sibling[0] == null) {
-                leftChild.sibling[0] = outDarker;
+            if (leftChild.sibling0 == null) {
+                this.setSibling0(leftChild, outDarker);
             } else {
-                leftChild.sibling[1] = outDarker;
+                this.setSibling1(leftChild, outDarker);
             }
 
             // outDarker should never be null
-            if (outDarker.sibling[0] == this) {
-                outDarker.sibling[0] = leftChild;
+            if (outDarker.sibling0 == this) {
+                this.setSibling0(outDarker, leftChild);
             } else {
-                outDarker.sibling[1] = leftChild;
+                this.setSibling1(outDarker, leftChild);
             }
         }
 
         // Set type R if necessary
-        if ((this.type == PQRType.R) && (r.getType() == PQRType.Q)) {
+        if ((this.getType() == PQRType.R) && (r.getType() == PQRType.Q)) {
             r.setType(PQRType.R);
         }
         
         // Update LCA child count and colored children lists
-        r.childCount = r.childCount + this.childCount;
-        r.blackChildren.addAll(this.blackChildren);
-        r.grayChildren.addAll(this.grayChildren);
+        r.setChildCount(r.childCount + this.childCount);
+        r.appendColoredChildren(this);
         
         // Destroy this node
-        this.sibling[0] = null;
-        this.sibling[1] = null;
+        this.setSibling0(this, null);
+        this.setSibling1(this, null);
         this.destroy();
     }
 
+    /**
+     * Moves the colored children lists of v to the end of the lists of this
+     * node, in constant time.
+     * 
+     * @param v A node whose children are becoming children of this node.
+     */
+    private void appendColoredChildren(PQRNode v) {
+        if (v.blackHead != null) {
+            if (this.blackTail == null) {
+                this.blackHead = v.blackHead;
+            } else {
+                this.blackTail.nextColored = v.blackHead;
+            }
+            this.blackTail = v.blackTail;
+            this.blackCount += v.blackCount;
+        }
+        if (v.grayHead != null) {
+            if (this.grayTail == null) {
+                this.grayHead = v.grayHead;
+            } else {
+                this.grayTail.nextColored = v.grayHead;
+            }
+            this.grayTail = v.grayTail;
+        }
+        v.clearBlackChildren();
+        v.clearGrayChildren();
+    }
+
     void mergePNode() {
         PQRNode r = this.getParent();
 
         // Determine darkest direction
-        Node lightestDir = this.sibling[0];
-        Node darkestDir = this.sibling[1];
+        Node lightestDir = this.sibling0;
+        Node darkestDir = this.sibling1;
         if ((darkestDir == null)
             || ((lightestDir != null) 
                 && (lightestDir.getColor().ordinal() > darkestDir.getColor().ordinal()))) {
@@ -540,20 +749,20 @@ class PQRNode extends Node {
         }
 
         // Move black children
-        if (this.blackChildren.size() > 1) {
-            PQRNode b = new PQRNode(PQRType.P);
+        if (this.blackCount > 1) {
+            PQRNode b = new PQRNode(PQRType.P, this.owner);
             b.visit();
             r.insertBetween(b, this, darkestDir);
             darkestDir = b;
-            while (!this.blackChildren.isEmpty()) {
-                Node bi = this.blackChildren.poll();
+            while (this.blackHead != null) {
+                Node bi = this.pollBlackChild();
                 this.removeChild(bi);
                 b.insertEnd(bi);
             }
             b.setColor(Color.BLACK);
         } else {
-            while (!this.blackChildren.isEmpty()) {
-                Node bi = this.blackChildren.poll();
+            while (this.blackHead != null) {
+                Node bi = this.pollBlackChild();
                 this.removeChild(bi);
                 r.insertBetween(bi, this, darkestDir);
                 darkestDir = bi;
@@ -561,8 +770,8 @@ class PQRNode extends Node {
         }
 
         // Move gray children
-        while (!this.grayChildren.isEmpty()) {
-            Node gi = this.grayChildren.poll();
+        while (this.grayHead != null) {
+            Node gi = this.pollGrayChild();
             this.removeChild(gi);
             r.insertBetween(gi, this, darkestDir);
             darkestDir = gi;
@@ -588,7 +797,7 @@ class PQRNode extends Node {
      **************************************
      */
     void adjust() {
-        switch (this.type) {
+        switch (this.getType()) {
             case P:
                 this.joinBlackChildren();
                 break;
@@ -604,17 +813,81 @@ class PQRNode extends Node {
 
     private void adjustQ() {
         int whiteCount = 0;
-        for (Node b : this.blackChildren) {
-            if ((b.sibling[0] == null) || (b.sibling[0].getColor() == Color.WHITE)) {
+        for (Node b = this.blackHead; b != null; b = b.nextColored) {
+            if ((b.sibling0 == null) || (b.sibling0.getColor() == Color.WHITE)) {
                 whiteCount++;
             }
-            if ((b.sibling[1] == null) || (b.sibling[1].getColor() == Color.WHITE)) {
+            if ((b.sibling1 == null) || (b.sibling1.getColor() == Color.WHITE)) {
                 whiteCount++;
             }
         }
 
         if (whiteCount > 2) {
-            this.type = PQRType.R;
+            this.setType(PQRType.R);
+        }
+    }
+
+    @Override
+    Node readNodeField(int field) {
+        switch (field) {
+            case Journal.FIRST_CHILD:
+                return this.firstChild;
+            case Journal.LAST_CHILD:
+                return this.lastChild;
+            case Journal.REPRESENTATIVE_CHILD:
+                return this.representativeChild;
+            default:
+                return super.readNodeField(field);
+        }
+    }
+
+    @Override
+    void writeNodeField(int field, Node v) {
+        switch (field) {
+            case Journal.FIRST_CHILD:
+                this.firstChild = v;
+                break;
+            case Journal.LAST_CHILD:
+                this.lastChild = v;
+                break;
+            case Journal.REPRESENTATIVE_CHILD:
+                this.representativeChild = v;
+                break;
+            default:
+                super.writeNodeField(field, v);
+                break;
+        }
+    }
+
+    @Override
+    int readIntField(int field) {
+        switch (field) {
+            case Journal.CHILD_COUNT:
+                return this.childCount;
+            case Journal.TYPE:
+                return this.type;
+            case Journal.DELETED:
+                return this.deleted ? 1 : 0;
+            default:
+                return super.readIntField(field);
+        }
+    }
+
+    @Override
+    void writeIntField(int field, int value) {
+        switch (field) {
+            case Journal.CHILD_COUNT:
+                this.childCount = value;
+                break;
+            case Journal.TYPE:
+                this.type = (byte) value;
+                break;
+            case Journal.DELETED:
+                this.deleted = (value != 0);
+                break;
+            default:
+                super.writeIntField(field, value);
+                break;
         }
     }
 
@@ -622,8 +895,8 @@ class PQRNode extends Node {
     void cleanUp() {
         super.cleanUp();
 
-        this.grayChildren.clear();
-        this.blackChildren.clear();
+        this.clearGrayChildren();
+        this.clearBlackChildren();
     }
 
     /*
@@ -640,66 +913,43 @@ class PQRNode extends Node {
      */
     @Override
     public String toString() {
-        String s = "";
-
-        switch (this.type) {
-            case P:
-                s += "(";
-                break;
-
-            case Q:
-                s += "[";
-                break;
-
-            case R:
-                s += "{";
-                break;
-
-            default:
-                break;
-        }
-
-        Node child = this.getFirstChild();
-        Node prevChild = null;
-        int nextChild;
-        while (child != null) {
-            s += child.toString();
-            if (child != this.getLastChild()) {
-                s += " ";
-            }
-
-            // Get next child
-            if (child.sibling[0] == prevChild) {
-                nextChild = 1;
+        StringBuilder s = new StringBuilder();
+
+        // Walk the subtree without recursion, so deep trees cannot overflow
+        // the stack. Brackets and separators go on the stack as characters.
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Object top = stack.pop();
+            if (top instanceof Character) {
+                s.append((char) (Character) top);
+            } else if (top instanceof Leaf) {
+                s.append(((Leaf) top).getValue());
             } else {
-                nextChild = 0;
+                PQRNode v = (PQRNode) top;
+                s.append(OPEN[v.type]);
+                stack.push(CLOSE[v.type]);
+
+                // Push children from last to first, so the first pops first
+                Node child = v.getLastChild();
+                Node prevChild = null;
+                while (child != null) {
+                    if (prevChild != null) {
+                        stack.push(' ');
+                    }
+                    stack.push(child);
+                    Node nextChild = child.nextSibling(prevChild);
+                    prevChild = child;
+                    child = nextChild;
+                }
             }
-            prevChild = child;
-            child = child.sibling[nextChild];
-        }
-
-        switch (this.type) {
-            case P:
-                s += ")";
-                break;
-
-            case Q:
-                s += "]";
-                break;
-
-            case R:
-                s += "}";
-                break;
-
-            default:
-                break;
         }
 
-        return s;
+        return s.toString();
     }
 
     @Override
     boolean areAllChildrenBlack() {
-        return (this.blackChildren.size() == this.getChildCount());
+        return (this.blackCount == this.getChildCount());
     }
 }
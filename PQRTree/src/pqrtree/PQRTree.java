@@ -1,6 +1,15 @@
 package pqrtree;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 /**
  * The main class for solving the Consecutive Ones Problem (C1P). Builds and
@@ -13,85 +22,1967 @@ import java.util.LinkedList;
  * 
  * Then, constraints can be added to the tree one by one using PQRTree.reduce().
  * 
+ * Elements can also be added to a live tree, with PQRTree.addLeaf(), and
+ * referred to by sparse long identifiers instead of dense labels.
+ * 
  * @author Joao
  */
 public class PQRTree {
 
     /**
-     * The root of the tree.
+     * Default size from which constraints are bubbled in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 16;
+    /**
+     * Levels of the parallel bubble smaller than this are processed on the
+     * calling thread, since splitting them would cost more than it saves.
+     */
+    private static final int MIN_PARALLEL_LEVEL = 4096;
+    /**
+     * A reduction that may be aborted checks its cancellation token once
+     * every CHECK_INTERVAL steps of its loops (a power of two).
+     */
+    private static final int CHECK_INTERVAL = 1024;
+    /**
+     * The base of the polynomial hash of the children of Q-nodes.
+     */
+    private static final long HASH_BASE = 0x100000001B3L;
+
+    /**
+     * Thrown from inside a reduction to abort it. It is preallocated and has
+     * no stack trace, so aborting costs nothing but the unwinding.
+     */
+    private static final Cancelled CANCELLED = new Cancelled();
+    /**
+     * Thrown from inside a reduction in greedy mode to roll back a constraint
+     * that created an R-node.
+     */
+    private static final Cancelled REJECTED = new Cancelled();
+
+    private static final class Cancelled extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * The state of a tree that lives outside its nodes: the root and the
+     * counters. Along with the fields of the nodes, it is all a reduction
+     * changes.
+     */
+    static final class Checkpoint {
+
+        private final PQRNode root;
+        private final boolean hasRNode;
+        private final boolean covered;
+        private final long[] typeCounts;
+        private final long[] rankCounts;
+        private final long retainedCount;
+        private final long constraintCount;
+
+        private Checkpoint(PQRTree t) {
+            this.root = t.root;
+            this.hasRNode = t.hasRNode;
+            this.covered = t.covered;
+            this.typeCounts = t.typeCounts.clone();
+            int top = t.rankCounts.length - 1;
+            while ((top > 0) && (t.rankCounts[top] == 0)) {
+                top--;
+            }
+            this.rankCounts = Arrays.copyOf(t.rankCounts, top + 1);
+            this.retainedCount = t.retainedCount;
+            this.constraintCount = t.constraintCount;
+        }
+
+        boolean hasRNode() {
+            return this.hasRNode;
+        }
+    }
+
+    /**
+     * The root of the tree.
+     */
+    private PQRNode root;
+    
+    /**
+     * An array of all the leaves, indexed by label. It may have spare room at
+     * the end for leaves added later.
+     */
+    private Leaf[] leaf;
+    /**
+     * The number of leaves in the tree.
+     */
+    private int leafCount;
+    /**
+     * Maps external long identifiers to leaf labels. Only created when leaves
+     * are first referred to by identifier.
+     */
+    private LongIntMap labelOfId;
+    /**
+     * The external identifier of each leaf, indexed by label.
+     */
+    private long[] idOfLabel;
+    
+    /**
+     * A list to hold all nodes that are visited during the reduction process.
+     */
+    private final ArrayDeque<PQRNode> visitedNodes;
+
+    /**
+     * The leaves of the constraint being added. Every kind of constraint
+     * (labels, identifiers, bit rows) is turned into this array before the
+     * reduction, so the reduction itself never depends on the input format.
+     */
+    private Leaf[] pertinent;
+    /**
+     * The number of leaves in the constraint being added.
+     */
+    private int pertinentCount;
+
+    /**
+     * Whether some reduction has produced an R-node, i.e., whether the
+     * constraints added so far have no valid ordering.
+     */
+    private boolean hasRNode;
+    /**
+     * Whether some constraint added so far covers every leaf. Such a
+     * constraint does not change a P-node root, so it is only kept here until
+     * a leaf is added, which must stay out of it.
+     */
+    private boolean covered;
+
+    /**
+     * The number of P-, Q- and R-nodes in the tree, indexed by type ordinal.
+     * The nodes keep these counters up to date as they are created, change
+     * type and are destroyed.
+     */
+    private final long[] typeCounts;
+    /**
+     * The number of nodes removed from the tree but kept in the union-find
+     * structure of the children of a Q- or R-node.
+     */
+    private long retainedCount;
+    /**
+     * rankCounts[k] is the number of nodes of rank k, for k > 0. Every other
+     * node has rank 0.
+     */
+    private final long[] rankCounts;
+
+    /**
+     * Constraints with at least this many elements are bubbled in parallel.
+     */
+    private int parallelThreshold;
+
+    /**
+     * How infeasible constraints are handled.
+     */
+    private ReductionMode mode;
+    /**
+     * The number of constraints given to the tree since it was built or reset,
+     * which is also the index of the next one.
+     */
+    private long constraintCount;
+    /**
+     * The first infeasible constraint, in strict mode. Once it is set, every
+     * constraint is ignored.
+     */
+    private ReductionFailure failure;
+    /**
+     * The indexes of the constraints rejected in greedy mode.
+     */
+    private long[] rejected;
+    /**
+     * The number of rejected constraints.
+     */
+    private int rejectedCount;
+    /**
+     * The number of constraints after which a batch relays the tree out, or 0
+     * to never do it automatically.
+     */
+    private long relayoutInterval;
+    /**
+     * The number of constraints given to the tree at its last relayout.
+     */
+    private long relayoutCount;
+
+    /**
+     * Tells whether the running reduction must be aborted. It is null when
+     * the reduction cannot be aborted.
+     */
+    private BooleanSupplier cancel;
+    /**
+     * Steps done by the running reduction, counted to space the checks of
+     * the cancellation token.
+     */
+    private int steps;
+    /**
+     * Whether the last reduction was aborted.
+     */
+    private boolean cancelled;
+    /**
+     * The undo log of the running reduction. It is null when the reduction
+     * cannot be aborted, so the nodes do not log anything.
+     */
+    private Journal journal;
+    /**
+     * Records the structural changes for the change listener, or null if
+     * there is no listener.
+     */
+    private ChangeFeed feed;
+    /**
+     * The undo log, kept between reductions to reuse its arrays.
+     */
+    private Journal spareJournal;
+    /**
+     * Logs every change to the nodes, for PersistentPQRTree, or null.
+     */
+    private Journal history;
+
+    /**
+     * Builds and returns an universal tree with n leaves.
+     * 
+     * @param n The number of leaves in the tree. 
+     */
+    public PQRTree(int n) {
+        super();
+
+        this.root = null;
+        this.leaf = new Leaf[0];
+        this.visitedNodes = new ArrayDeque<>();
+        this.pertinent = new Leaf[0];
+        this.typeCounts = new long[PQRType.values().length];
+        this.rankCounts = new long[64];
+        this.parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+        this.mode = ReductionMode.PQR;
+        this.relayoutInterval = 0;
+        this.feed = null;
+        this.history = null;
+        this.rejected = new long[0];
+
+        this.reset(n);
+    }
+
+    /**
+     * Turns this tree back into an universal tree with n leaves, discarding all
+     * the constraints added so far. The existing leaves are reused, so a tree
+     * can be recycled across instances of similar size.
+     * 
+     * @param n The number of leaves in the tree.
+     */
+    public void reset(int n) {
+        ChangeFeed feed = this.feed;
+        this.feed = null;
+
+        Arrays.fill(this.typeCounts, 0);
+        Arrays.fill(this.rankCounts, 0);
+        this.retainedCount = 0;
+
+        // Create root
+        this.root = new PQRNode(PQRType.P, this);
+
+        // Resize the leaf list, keeping the leaves already created
+        if (this.leaf.length < n) {
+            this.leaf = Arrays.copyOf(this.leaf, n);
+        }
+        for (int i = n; i < this.leafCount; i++) {
+            this.leaf[i] = null;
+        }
+        this.leafCount = n;
+
+        // Create and insert leaves
+        for (int i = 0; i < n; i++) {
+            if (this.leaf[i] != null) {
+                this.leaf[i].reset();
+            } else {
+                this.leaf[i] = new Leaf(i);
+            }
+            this.root.insertEnd(this.leaf[i]);
+        }
+
+        this.labelOfId = null;
+        this.idOfLabel = null;
+
+        this.visitedNodes.clear();
+        this.hasRNode = false;
+        this.covered = false;
+        this.constraintCount = 0;
+        this.relayoutCount = 0;
+        this.failure = null;
+        this.rejectedCount = 0;
+
+        this.feed = feed;
+        if (feed != null) {
+            feed.snapshot(this.root, -1);
+        }
+    }
+
+    /**
+     * Returns the number of leaves of the tree.
+     * 
+     * @return The number of leaves.
+     */
+    public int size() {
+        return this.leafCount;
+    }
+
+    /**
+     * Creates a new leaf and appends it to the leaf list, growing the list
+     * geometrically so that additions take amortized constant time.
+     * 
+     * @return The new leaf.
+     */
+    private Leaf newLeaf() {
+        if (this.leafCount == this.leaf.length) {
+            this.leaf = Arrays.copyOf(this.leaf, Math.max(8, 2 * this.leaf.length));
+        }
+        Leaf v = new Leaf(this.leafCount);
+        this.leaf[this.leafCount++] = v;
+        return v;
+    }
+
+    /**
+     * Adds a new element to the tree. No constraint applies to it yet, so it
+     * goes directly under the root, which is first put under a new P-node root
+     * if it is not a P-node or if some constraint covers all the other leaves.
+     * 
+     * @return The label of the new leaf.
+     */
+    public int addLeaf() {
+        Leaf v = this.newLeaf();
+
+        if ((this.root.getType() != PQRType.P) || this.covered) {
+            PQRNode r = new PQRNode(PQRType.P, this);
+            r.insertEnd(this.root);
+            this.root = r;
+            this.covered = false;
+        }
+        this.root.insertEnd(v);
+
+        if (this.feed != null) {
+            this.feed.flush(this.root, -1, null);
+        }
+        return this.leafCount - 1;
+    }
+
+    /**
+     * Adds a new element to the tree, bound by exactly the same constraints as
+     * an existing one. The new leaf goes next to its twin under their P-node
+     * parent, which is created if the twin was the child of a Q- or R-node.
+     * A constraint covering all the leaves covers the new one too.
+     * 
+     * @param twin The label of an existing leaf.
+     * @return The label of the new leaf.
+     */
+    public int addTwin(int twin) {
+        Leaf v = this.newLeaf();
+        PQRNode p = this.bindTwin(v, twin, false);
+        if (this.feed != null) {
+            this.feed.flush(this.root, -1, p);
+        }
+        return this.leafCount - 1;
+    }
+
+    /**
+     * Places a detached leaf next to a twin leaf.
+     * <p>
+     * If the twin is a child of a P-node, the new leaf may simply become its
+     * sibling: every constraint added so far either contains all the leaves of
+     * that P-node or only the twin, and singleton constraints are ignored.
+     * Otherwise, the twin is replaced by a new P-node holding both leaves.
+     * <p>
+     * Children of Q- and R-nodes may be internal nodes of the union-find
+     * structure of their siblings, so they cannot leave it. If the twin is one
+     * of those, it is left behind in the union-find tree only, like a deleted
+     * node, and a fresh leaf with the same label takes its place under the new
+     * P-node.
+     * 
+     * @param v The leaf to be placed. It must not be in the tree.
+     * @param twin The label of a leaf in the tree.
+     * @param group If true, a new P-node holding both leaves is always
+     *        created, even if the twin is a child of a P-node.
+     * @return The node whose children changed: the old parent of the twin.
+     */
+    private PQRNode bindTwin(Leaf v, int twin, boolean group) {
+        Leaf t = this.leaf[twin];
+        PQRNode p = t.getParent();
+
+        if ((p.getType() == PQRType.P) && !group) {
+            p.insertEnd(v);
+        } else if (p.getType() == PQRType.P) {
+            PQRNode g = new PQRNode(PQRType.P, this);
+            p.insertEnd(g);
+            p.removeChild(t);
+            g.insertEnd(t);
+            g.insertEnd(v);
+        } else {
+            PQRNode g = new PQRNode(PQRType.P, this);
+            p.insertBetween(g, t, t.sibling0);
+            p.removeChild(t);
+
+            Leaf u = new Leaf(twin);
+            this.leaf[twin] = u;
+            this.retainedCount++;
+            g.insertEnd(u);
+            g.insertEnd(v);
+        }
+        return p;
+    }
+
+    /**
+     * Moves a leaf next to a twin leaf. Used to expand a tree built with only
+     * one representative of each class of twins.
+     * 
+     * @param v The label of the leaf to be moved. It must not be part of any
+     *        constraint added so far, so it is still a child of a P-node.
+     * @param twin The label of the leaf v will be bound to.
+     * @param group If true, the twin is first replaced by a new P-node that
+     *        will hold its whole class. If false, the twin must already be in
+     *        such a P-node.
+     * @see TwinReduction
+     */
+    void moveTwin(int v, int twin, boolean group) {
+        Leaf l = this.leaf[v];
+        PQRNode p = l.getParent();
+        if (p.getType() != PQRType.P) {
+            throw new IllegalStateException("Leaf " + v + " is already constrained");
+        }
+
+        p.removeChild(l);
+        this.bindTwin(l, twin, group);
+
+        // A root left with a single child is replaced by it
+        if ((this.root.getChildCount() == 1) && (this.root.getFirstChild() instanceof PQRNode)) {
+            PQRNode r = (PQRNode) this.root.getFirstChild();
+            this.root.removeChild(r);
+            r.setParent(null);
+            this.root.destroy();
+            this.root = r;
+        }
+
+        if (this.feed != null) {
+            this.feed.flush(this.root, -1, null);
+        }
+    }
+
+    /**
+     * Makes the constraint on all the leaves explicit, so it still holds for
+     * them when leaves are added. A P-node root is put under a new P-node
+     * root, which the new leaves go into. Any other root already is.
+     */
+    void enclose() {
+        if ((this.leafCount > 1) && (this.root.getType() == PQRType.P)) {
+            PQRNode r = new PQRNode(PQRType.P, this);
+            r.insertEnd(this.root);
+            this.root = r;
+            this.covered = false;
+
+            if (this.feed != null) {
+                this.feed.flush(this.root, -1, null);
+            }
+        }
+    }
+
+    /**
+     * Copies the structure of another tree over free leaves of this one, as
+     * if the constraints of the other tree and one constraint on all its
+     * leaves were added. The free leaves are the ones with no constraint on
+     * them yet, directly under a P-node root. This takes time linear in the
+     * size of the other tree, which is not changed.
+     * 
+     * @param other The tree to copy.
+     * @param labels The label in this tree of each leaf of the other tree.
+     * @throws IllegalArgumentException If a leaf is not free.
+     */
+    void graft(PQRTree other, int[] labels) {
+        for (int label : labels) {
+            if ((this.root.getType() != PQRType.P) || (this.leaf[label].getParent() != this.root)) {
+                throw new IllegalArgumentException("Leaf " + label + " is already constrained");
+            }
+        }
+
+        if (labels.length < 2) {
+            return;
+        }
+
+        PQRNode top = new PQRNode(other.root.getType(), this);
+        this.root.insertEnd(top);
+
+        ArrayList<PQRNode> nodes = new ArrayList<>();
+        ArrayList<PQRNode> copies = new ArrayList<>();
+        nodes.add(other.root);
+        copies.add(top);
+        while (!nodes.isEmpty()) {
+            PQRNode v = nodes.remove(nodes.size() - 1);
+            PQRNode u = copies.remove(copies.size() - 1);
+
+            Node previous = null;
+            Node child = v.getFirstChild();
+            while (child != null) {
+                if (child instanceof Leaf) {
+                    Leaf l = this.leaf[labels[((Leaf) child).getValue()]];
+                    this.root.removeChild(l);
+                    u.insertEnd(l);
+                } else {
+                    PQRNode c = new PQRNode(((PQRNode) child).getType(), this);
+                    u.insertEnd(c);
+                    nodes.add((PQRNode) child);
+                    copies.add(c);
+                }
+                Node next = child.nextSibling(previous);
+                previous = child;
+                child = next;
+            }
+        }
+        this.hasRNode |= other.hasRNode;
+
+        // A root left with a single child is replaced by it
+        if ((this.root.getChildCount() == 1) && (this.root.getFirstChild() instanceof PQRNode)) {
+            PQRNode r = (PQRNode) this.root.getFirstChild();
+            this.root.removeChild(r);
+            r.setParent(null);
+            this.root.destroy();
+            this.root = r;
+        }
+
+        if (this.feed != null) {
+            this.feed.flush(this.root, -1, null);
+        }
+    }
+
+    /*
+     *************************************
+     * Elements with long identifiers.   *
+     *************************************
+     */
+
+    /**
+     * Returns the label of the leaf of an element given by identifier, adding
+     * a new leaf under the root if the identifier was never seen.
+     * 
+     * @param id The element identifier.
+     * @return The label of its leaf.
+     */
+    public int addLeaf(long id) {
+        if (this.labelOfId == null) {
+            this.labelOfId = new LongIntMap(this.leafCount);
+            this.idOfLabel = new long[Math.max(8, this.leaf.length)];
+            // Elements created by the constructor are their own identifiers
+            for (int i = 0; i < this.leafCount; i++) {
+                this.labelOfId.put(i, i);
+                this.idOfLabel[i] = i;
+            }
+        }
+
+        int label = this.labelOfId.get(id);
+        if (label == LongIntMap.NO_VALUE) {
+            label = this.addLeaf();
+            this.labelOfId.put(id, label);
+            if (label >= this.idOfLabel.length) {
+                this.idOfLabel = Arrays.copyOf(this.idOfLabel, this.leaf.length);
+            }
+            this.idOfLabel[label] = id;
+        }
+
+        return label;
+    }
+
+    /**
+     * Returns the label of the leaf of an element given by identifier.
+     * 
+     * @param id The element identifier.
+     * @return The label of its leaf, or -1 if there is no such element.
+     */
+    public int getLabel(long id) {
+        if (this.labelOfId == null) {
+            return ((id >= 0) && (id < this.leafCount)) ? (int) id : -1;
+        }
+        return this.labelOfId.get(id);
+    }
+
+    /**
+     * Returns the identifier of the element of a leaf.
+     * 
+     * @param label A leaf label.
+     * @return The identifier of its element.
+     */
+    public long getId(int label) {
+        return (this.idOfLabel == null) ? label : this.idOfLabel[label];
+    }
+
+    /**
+     * Adds one constraint set given by element identifiers. Identifiers never
+     * seen before get new leaves under the root before the reduction.
+     * 
+     * @param c An array of element identifiers that must be consecutive.
+     */
+    public void reduce(long[] c) {
+        if (!this.startConstraint()) {
+            return;
+        }
+
+        this.ensurePertinentCapacity(c.length);
+        for (int i = 0; i < c.length; i++) {
+            int label = this.addLeaf(c[i]);
+            this.pertinent[i] = this.leaf[label];
+        }
+        this.pertinentCount = c.length;
+
+        this.reducePertinent();
+    }
+
+    /**
+     * Adds one constraint set to the tree, updating its structure as necessary.
+     * 
+     * @param c An array of integers that must be consecutive.
+     */
+    public void reduce(int[] c) {
+        this.reduce(c, 0, c.length);
+    }
+
+    /**
+     * Adds one constraint set held in a slice of an array, such as one row of
+     * constraints stored in CSR form, without copying it.
+     * 
+     * @param elements The array holding the constraint.
+     * @param from The index of the first label of the constraint.
+     * @param to The index after the last label of the constraint.
+     */
+    public void reduce(int[] elements, int from, int to) {
+        if (!this.startConstraint() || (to - from < 2)) {
+            return;
+        }
+
+        this.ensurePertinentCapacity(to - from);
+        for (int i = from; i < to; i++) {
+            this.pertinent[i - from] = this.leaf[elements[i]];
+        }
+        this.pertinentCount = to - from;
+
+        this.reducePertinent();
+    }
+
+    /**
+     * Adds one constraint set given as a set of labels.
+     * 
+     * @param c The labels that must be consecutive.
+     */
+    public void reduce(BitSet c) {
+        if (!this.startConstraint()) {
+            return;
+        }
+
+        int k = c.cardinality();
+        if (k < 2) {
+            return;
+        }
+
+        this.ensurePertinentCapacity(k);
+        k = 0;
+        for (int i = c.nextSetBit(0); i >= 0; i = c.nextSetBit(i + 1)) {
+            this.pertinent[k++] = this.leaf[i];
+        }
+        this.pertinentCount = k;
+
+        this.reducePertinent();
+    }
+
+    /**
+     * Adds one constraint set given as a row of a 0/1 matrix packed into
+     * words: label i is in the constraint if bit (i % 64) of row[i / 64] is
+     * set. The labels are read directly from the words, one set bit at a time,
+     * without building an array of labels first.
+     * 
+     * @param row The packed row.
+     */
+    public void reduceRow(long[] row) {
+        if (!this.startConstraint()) {
+            return;
+        }
+
+        int k = 0;
+        for (long w : row) {
+            k += Long.bitCount(w);
+        }
+        if (k < 2) {
+            return;
+        }
+
+        this.ensurePertinentCapacity(k);
+        k = 0;
+        for (int j = 0; j < row.length; j++) {
+            long w = row[j];
+            while (w != 0) {
+                this.pertinent[k++] = this.leaf[64 * j + Long.numberOfTrailingZeros(w)];
+                w &= w - 1;
+            }
+        }
+        this.pertinentCount = k;
+
+        this.reducePertinent();
+    }
+
+    /**
+     * Adds the rows of a packed 0/1 matrix as constraints, in order.
+     * A row equal to the previous one adds nothing new and is skipped.
+     * 
+     * @param rows The packed rows.
+     * @see PQRTree#reduceRow(long[])
+     */
+    public void reduceRows(long[][] rows) {
+        long[] previous = null;
+        for (long[] row : rows) {
+            if (!Arrays.equals(row, previous)) {
+                this.reduceRow(row);
+                previous = row;
+            } else {
+                this.startConstraint();
+            }
+        }
+        this.relayoutIfDue();
+    }
+
+    /**
+     * Adds constraint sets to the tree, in order. In strict mode, it stops at
+     * the first infeasible constraint.
+     * 
+     * @param constraints The sets of labels that must be consecutive.
+     * @return true if the tree has no R-node afterwards, false otherwise.
+     */
+    public boolean reduceAll(int[][] constraints) {
+        for (int[] c : constraints) {
+            if (this.failure != null) {
+                break;
+            }
+            this.reduce(c);
+        }
+        this.relayoutIfDue();
+        return !this.hasRNode;
+    }
+
+    /**
+     * Counts a new constraint and tells whether it should be added.
+     * 
+     * @return false if the tree is in strict mode and already failed.
+     */
+    private boolean startConstraint() {
+        this.constraintCount++;
+        return (this.failure == null);
+    }
+
+    /**
+     * Makes sure the pertinent leaf array can hold k leaves.
+     * 
+     * @param k The number of leaves in the next constraint.
+     */
+    private void ensurePertinentCapacity(int k) {
+        if (this.pertinent.length < k) {
+            this.pertinent = new Leaf[Math.max(k, 2 * this.pertinent.length)];
+        }
+    }
+
+    /**
+     * Adds the constraint held in the pertinent leaf array.
+     */
+    private void reducePertinent() {
+        if (this.pertinentCount > 1) {
+            PQRNode oldRoot = this.root;
+            long[] oldTypeCounts = null;
+            long[] oldRankCounts = null;
+            long oldRetainedCount = this.retainedCount;
+            if ((this.mode == ReductionMode.GREEDY_PQ) && (this.journal == null)) {
+                if (this.spareJournal == null) {
+                    this.spareJournal = new Journal();
+                }
+                this.journal = this.spareJournal;
+            }
+            if (this.journal != null) {
+                oldTypeCounts = this.typeCounts.clone();
+                oldRankCounts = this.rankCounts.clone();
+            }
+
+            try {
+                PQRNode r = this.updateTree();
+                if (this.pertinentCount == this.leafCount) {
+                    this.covered = true;
+                }
+                if (this.feed != null) {
+                    this.feed.flush(this.root, this.constraintCount - 1, r);
+                }
+            } catch (Cancelled e) {
+                // Put the tree back as it was before the reduction
+                this.journal.undo();
+                this.root = oldRoot;
+                System.arraycopy(oldTypeCounts, 0, this.typeCounts, 0, oldTypeCounts.length);
+                System.arraycopy(oldRankCounts, 0, this.rankCounts, 0, oldRankCounts.length);
+                this.retainedCount = oldRetainedCount;
+                if (e == REJECTED) {
+                    this.reject(this.constraintCount - 1);
+                } else {
+                    this.constraintCount--;
+                    this.cancelled = true;
+                }
+                if (this.feed != null) {
+                    this.feed.discard();
+                }
+            }
+
+            if (this.journal != null) {
+                this.journal.clear();
+                this.journal = null;
+            }
+            this.uncolor();
+        }
+
+        Arrays.fill(this.pertinent, 0, this.pertinentCount, null);
+        this.pertinentCount = 0;
+    }
+
+    /**
+     * Colors the tree for the constraint in the pertinent leaf array, and
+     * updates it.
+     * 
+     * @return The LCA after the update.
+     */
+    private PQRNode updateTree() {
+        PQRNode r;
+        long rCount = this.typeCounts[PQRType.R.ordinal()];
+        // The journal of a cancellable reduction or of persistent versions is
+        // not thread-safe, and the parallel bubble compresses paths from many
+        // threads, so logged reductions bubble sequentially
+        if ((this.pertinentCount >= this.parallelThreshold) && (this.getJournal() == null)) {
+            r = this.parallelBubble();
+        } else {
+            r = this.bubble();
+        }
+
+        // A frozen R-node keeps its children as they are
+        if ((this.mode != ReductionMode.FROZEN_R) || (r.getType() != PQRType.R)) {
+            r = this.repairGray(r);
+            r.adjust();
+            if ((this.mode == ReductionMode.GREEDY_PQ) && (this.typeCounts[PQRType.R.ordinal()] > rCount)) {
+                throw REJECTED;
+            }
+            if (r.getType() == PQRType.R) {
+                this.hasRNode = true;
+                if (this.mode == ReductionMode.STRICT_PQ) {
+                    this.failure = new ReductionFailure(this.constraintCount - 1, r);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Adds one constraint set to the tree, unless it is cancelled first. The
+     * token is checked before the reduction and then periodically while the
+     * tree is being colored and repaired. If it returns true, the reduction is
+     * aborted and every change it made is undone, leaving the tree exactly as
+     * it was before the call.
+     * <p>
+     * The changes are logged while the reduction runs so they can be undone,
+     * which makes this slower than reduce(int[]). For the same reason, the
+     * constraint is bubbled sequentially, whatever its size.
+     * 
+     * @param c An array of integers that must be consecutive.
+     * @param cancel Returns true when the reduction must be aborted. It is
+     *        called on the thread running the reduction.
+     * @return true if the constraint was added, false if it was cancelled,
+     *         ignored because the tree already failed in strict mode, or
+     *         rejected in greedy mode.
+     */
+    public boolean reduce(int[] c, BooleanSupplier cancel) {
+        if (cancel.getAsBoolean()) {
+            return false;
+        }
+        if (this.failure != null) {
+            // Counted, as reduce(int[]) does, but not added
+            this.startConstraint();
+            return false;
+        }
+
+        if (this.spareJournal == null) {
+            this.spareJournal = new Journal();
+        }
+        this.cancel = cancel;
+        this.steps = 0;
+        this.cancelled = false;
+        this.journal = this.spareJournal;
+        int oldRejectedCount = this.rejectedCount;
+        try {
+            this.reduce(c);
+        } finally {
+            this.cancel = null;
+            this.journal = null;
+        }
+
+        return !this.cancelled && (this.rejectedCount == oldRejectedCount);
+    }
+
+    /**
+     * Adds one constraint set to the tree, unless it takes longer than the
+     * given time. A reduction that times out leaves the tree as it was.
+     * 
+     * @param c An array of integers that must be consecutive.
+     * @param timeout The maximum time to spend on the reduction.
+     * @param unit The unit of the timeout.
+     * @return true if the constraint was added, false if it timed out or was
+     *         not added for the reasons given in reduce(int[], BooleanSupplier).
+     * @see PQRTree#reduce(int[], java.util.function.BooleanSupplier)
+     */
+    public boolean reduce(int[] c, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return this.reduce(c, () -> System.nanoTime() - deadline >= 0);
+    }
+
+    /**
+     * Aborts the running reduction if it may be aborted and its cancellation
+     * token says so. The token is only called once every CHECK_INTERVAL
+     * steps.
+     */
+    private void checkCancelled() {
+        if ((this.cancel != null)
+                && ((++this.steps & (CHECK_INTERVAL - 1)) == 0)
+                && this.cancel.getAsBoolean()) {
+            throw CANCELLED;
+        }
+    }
+
+    /**
+     * Sets a listener for the structural changes of the tree. Right away, it
+     * is given a snapshot of the whole tree. Then, after each operation that
+     * changes the tree, it is given a delta with the changes, on the thread
+     * that ran the operation. Operations that change nothing, including
+     * aborted reductions, publish nothing.
+     * <p>
+     * Recording the changes costs time proportional to the size of the
+     * deltas. Without a listener, nothing is recorded.
+     * 
+     * @param listener The listener, or null to remove it.
+     * @see TreeDelta
+     */
+    public void setChangeListener(Consumer<TreeDelta> listener) {
+        if (listener == null) {
+            this.feed = null;
+        } else {
+            this.feed = new ChangeFeed(this, listener);
+            this.feed.snapshot(this.root, this.constraintCount - 1);
+        }
+    }
+
+    /**
+     * Returns the leaf with a label.
+     * 
+     * @param label The label.
+     * @return The leaf.
+     */
+    Leaf getLeaf(int label) {
+        return this.leaf[label];
+    }
+
+    /**
+     * Returns the recorder of the changes for the listener.
+     * 
+     * @return The feed, or null if there is no listener.
+     */
+    ChangeFeed getFeed() {
+        return this.feed;
+    }
+
+    /**
+     * Returns the undo log of the running reduction, or the history journal
+     * if the reduction cannot be aborted.
+     * 
+     * @return The journal, or null if no change is logged.
+     */
+    Journal getJournal() {
+        return (this.journal != null) ? this.journal : this.history;
+    }
+
+    /**
+     * Sets a journal that logs every change to the nodes, by reductions and
+     * by the path compressions of queries alike, until it is unset. The
+     * parallel bubble must be disabled while it is set, since the journal is
+     * not thread-safe.
+     * 
+     * @param history The journal, or null to stop logging.
+     */
+    void setHistory(Journal history) {
+        this.history = history;
+    }
+
+    /**
+     * Saves the state of the tree outside its nodes.
+     * 
+     * @return The checkpoint.
+     */
+    Checkpoint checkpoint() {
+        return new Checkpoint(this);
+    }
+
+    /**
+     * Brings back the state of the tree outside its nodes. The nodes must
+     * have been brought back to the same point, as by a journal.
+     * 
+     * @param c A checkpoint of this tree.
+     */
+    void restore(Checkpoint c) {
+        this.root = c.root;
+        this.hasRNode = c.hasRNode;
+        this.covered = c.covered;
+        System.arraycopy(c.typeCounts, 0, this.typeCounts, 0, c.typeCounts.length);
+        Arrays.fill(this.rankCounts, 0);
+        System.arraycopy(c.rankCounts, 0, this.rankCounts, 0, c.rankCounts.length);
+        this.retainedCount = c.retainedCount;
+        this.constraintCount = c.constraintCount;
+    }
+
+    /**
+     * Sets the size from which constraints are bubbled in parallel, on the
+     * common fork-join pool. Smaller constraints are bubbled sequentially,
+     * and so are the reductions whose changes are logged: cancellable ones
+     * and those of persistent versions. Both ways build exactly the same
+     * tree.
+     * 
+     * @param threshold The minimum number of elements of a constraint for it
+     *        to be bubbled in parallel. Integer.MAX_VALUE disables the
+     *        parallel bubble.
+     */
+    public void setParallelThreshold(int threshold) {
+        this.parallelThreshold = threshold;
+    }
+
+    /**
+     * Sets how infeasible constraints are handled. The mode can be changed at
+     * any time, and applies to the constraints added afterwards. Leaving
+     * strict mode clears its failure, so the constraints added afterwards are
+     * no longer ignored.
+     * 
+     * @param mode The new mode.
+     */
+    public void setMode(ReductionMode mode) {
+        this.mode = mode;
+        if (mode != ReductionMode.STRICT_PQ) {
+            this.failure = null;
+        }
+    }
+
+    public ReductionMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Returns the first infeasible constraint found in strict mode.
+     * 
+     * @return The failure, or null if there was none since the tree was built
+     *         or reset, or since it left strict mode.
+     */
+    public ReductionFailure getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Returns the constraints rejected in greedy mode, each one because it
+     * would have created an R-node given the constraints accepted before it.
+     * 
+     * @return The indexes of the rejected constraints, in increasing order,
+     *         counting every constraint given to the tree since it was built
+     *         or reset.
+     * @see ReductionMode#GREEDY_PQ
+     */
+    public long[] getRejected() {
+        return Arrays.copyOf(this.rejected, this.rejectedCount);
+    }
+
+    /**
+     * Records a rejected constraint.
+     * 
+     * @param index The index of the constraint.
+     */
+    private void reject(long index) {
+        if (this.rejectedCount == this.rejected.length) {
+            this.rejected = Arrays.copyOf(this.rejected, Math.max(8, 2 * this.rejectedCount));
+        }
+        this.rejected[this.rejectedCount++] = index;
+    }
+
+    /**
+     * Tests whether the tree has an R-node. Every reduction that creates or
+     * extends an R-node ends with that R-node as its LCA, so this is just a
+     * flag set by reduce().
+     * 
+     * @return true if the constraints added so far have no valid ordering,
+     *         false otherwise.
+     */
+    public boolean hasRNode() {
+        return this.hasRNode;
+    }
+
+    /**
+     * Returns the current size of the tree. The counters are kept up to date
+     * by the reductions, so this takes constant time and can be polled freely.
+     * The depth and the largest P-node arity are left out.
+     * 
+     * @return The statistics of the tree.
+     */
+    public TreeStats stats() {
+        return this.stats(false);
+    }
+
+    /**
+     * Returns the current size of the tree.
+     * 
+     * @param walk Whether to also measure the depth and the largest P-node
+     *        arity, which takes a walk over the whole tree.
+     * @return The statistics of the tree.
+     */
+    public TreeStats stats(boolean walk) {
+        long internal = this.typeCounts[PQRType.P.ordinal()] + this.typeCounts[PQRType.Q.ordinal()]
+                + this.typeCounts[PQRType.R.ordinal()];
+
+        // Ranks above the highest one in use are left out
+        int top = this.rankCounts.length - 1;
+        while ((top > 0) && (this.rankCounts[top] == 0)) {
+            top--;
+        }
+        long[] ranks = Arrays.copyOf(this.rankCounts, top + 1);
+        ranks[0] = this.leafCount + internal + this.retainedCount;
+        for (int k = 1; k <= top; k++) {
+            ranks[0] -= ranks[k];
+        }
+
+        long heap = (long) TreeStats.LEAF_BYTES * this.leafCount
+                + (long) TreeStats.NODE_BYTES * (internal + this.retainedCount)
+                + 16 + 4L * this.leaf.length
+                + 16 + 4L * this.pertinent.length;
+        if (this.labelOfId != null) {
+            heap += 16 + 8L * this.idOfLabel.length + this.labelOfId.estimateBytes();
+        }
+
+        int depth = -1;
+        int maxPArity = -1;
+        if (walk) {
+            depth = 0;
+            maxPArity = 0;
+
+            // Depth-first walk, with the depth of each node on a parallel stack
+            ArrayList<PQRNode> nodes = new ArrayList<>();
+            int[] depths = new int[16];
+            nodes.add(this.root);
+            while (!nodes.isEmpty()) {
+                PQRNode v = nodes.remove(nodes.size() - 1);
+                int d = depths[nodes.size()];
+                if (v.getType() == PQRType.P) {
+                    maxPArity = Math.max(maxPArity, v.getChildCount());
+                }
+
+                Node previous = null;
+                Node child = v.getFirstChild();
+                while (child != null) {
+                    depth = Math.max(depth, d + 1);
+                    if (child instanceof PQRNode) {
+                        if (nodes.size() == depths.length) {
+                            depths = Arrays.copyOf(depths, 2 * depths.length);
+                        }
+                        depths[nodes.size()] = d + 1;
+                        nodes.add((PQRNode) child);
+                    }
+                    Node next = child.nextSibling(previous);
+                    previous = child;
+                    child = next;
+                }
+            }
+        }
+
+        return new TreeStats(this.leafCount, this.typeCounts[PQRType.P.ordinal()],
+                this.typeCounts[PQRType.Q.ordinal()], this.typeCounts[PQRType.R.ordinal()], this.retainedCount,
+                ranks, heap, depth, maxPArity);
+    }
+
+    /**
+     * Counts a node created with the given type or changing to it.
+     * 
+     * @param type The type.
+     * @param delta 1 for a node of that type added, -1 for one removed.
+     */
+    void countNode(PQRType type, int delta) {
+        this.typeCounts[type.ordinal()] += delta;
+    }
+
+    /**
+     * Counts a node removed from the tree.
+     * 
+     * @param v The node.
+     * @param retained Whether it is kept in a union-find structure.
      */
-    private PQRNode root;
-    
+    void countDestroyed(PQRNode v, boolean retained) {
+        this.typeCounts[v.getType().ordinal()]--;
+        if (retained) {
+            this.retainedCount++;
+        } else if (v.getRank() > 0) {
+            this.rankCounts[v.getRank()]--;
+        }
+    }
+
     /**
-     * An array of all the leaves.
+     * Counts a node whose union-find rank went up by one.
+     * 
+     * @param rank The new rank.
      */
-    private Leaf[] leaf;
-    
+    void countRank(int rank) {
+        this.rankCounts[rank]++;
+        if (rank > 1) {
+            this.rankCounts[rank - 1]--;
+        }
+    }
+
     /**
-     * A list to hold all nodes that are visited during the reduction process.
+     * Tests whether a set of leaves is consecutive in every ordering
+     * represented by the tree, i.e., whether adding it as a constraint would
+     * not change the tree. The children of R-nodes are taken in their order,
+     * like the children of Q-nodes.
+     * <p>
+     * The tree is not changed, apart from the compression of union-find
+     * paths, which never changes the answer of any query. So this can run
+     * concurrently with other queries, but not with reductions.
+     * 
+     * @param c The labels of the leaves, without repetitions.
+     * @return true if the leaves are consecutive in every ordering.
+     */
+    public boolean isConsecutive(int[] c) {
+        if (c.length < 2) {
+            return true;
+        }
+
+        // For each node: pertinent children, full children, pertinent leaves
+        IdentityHashMap<Node, int[]> count = new IdentityHashMap<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        int offTheTop = 0;
+
+        // Count the pertinent children of each node, as in bubble()
+        for (int x : c) {
+            Node v = this.leaf[x];
+            count.put(v, new int[3]);
+            queue.add(v);
+        }
+        while (queue.size() + offTheTop > 1) {
+            PQRNode p = queue.poll().getParent();
+            if (p == null) {
+                offTheTop = 1;
+            } else {
+                int[] pc = count.get(p);
+                if (pc == null) {
+                    pc = new int[3];
+                    count.put(p, pc);
+                    queue.add(p);
+                }
+                pc[0]++;
+            }
+        }
+
+        // Find the full nodes from the bottom up, until the LCA
+        queue.clear();
+        for (int x : c) {
+            count.get(this.leaf[x])[2] = 1;
+            queue.add(this.leaf[x]);
+        }
+        ArrayList<Node> children = new ArrayList<>();
+        ArrayList<PQRNode> parents = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            Node v = queue.poll();
+            int[] vc = count.get(v);
+
+            if (vc[2] == c.length) {
+                return isConsecutiveAt((PQRNode) v, vc, children, parents, count);
+            }
+
+            PQRNode p = v.getParent();
+            int[] pc = count.get(p);
+            if (isFull(v, vc)) {
+                pc[1]++;
+            }
+            pc[2] += vc[2];
+            if (--pc[0] == 0) {
+                queue.add(p);
+            }
+            children.add(v);
+            parents.add(p);
+        }
+
+        return false;
+    }
+
+    /**
+     * Tests whether all the leaves under a node are in the set, given its
+     * counters from isConsecutive().
      */
-    private final LinkedList<PQRNode> visitedNodes;
+    private static boolean isFull(Node v, int[] vc) {
+        return (vc != null) && ((v instanceof Leaf) || (vc[1] == ((PQRNode) v).getChildCount()));
+    }
 
     /**
-     * Builds and returns an universal tree with n leaves.
+     * Decides isConsecutive() at the LCA of the set. Under a P-node, the set
+     * must be all of its leaves. Under a Q-node or an R-node, the pertinent
+     * children must be full and next to each other, so exactly two sides of
+     * them face a child that is not full (or the end of the list).
      * 
-     * @param n The number of leaves in the tree. 
+     * @param lca The LCA of the set.
+     * @param lc The counters of the LCA.
+     * @param children Every node below the LCA that was reached.
+     * @param parents The parent of each of them.
+     * @param count The counters of every node reached.
+     * @return true if the set is consecutive in every ordering.
      */
-    public PQRTree(int n) {
-        super();
+    private static boolean isConsecutiveAt(PQRNode lca, int[] lc, ArrayList<Node> children,
+            ArrayList<PQRNode> parents, IdentityHashMap<Node, int[]> count) {
+        if (lca.getType() == PQRType.P) {
+            return isFull(lca, lc);
+        }
 
-        this.root = null;
-        this.leaf = null;
+        int ends = 0;
+        for (int i = 0; i < children.size(); i++) {
+            if (parents.get(i) == lca) {
+                Node v = children.get(i);
+                if (!isFull(v, count.get(v))) {
+                    return false;
+                }
+                if (!isFull(v.sibling0, count.get(v.sibling0))) {
+                    ends++;
+                }
+                if (!isFull(v.sibling1, count.get(v.sibling1))) {
+                    ends++;
+                }
+            }
+        }
 
-        // Create root
-        this.root = new PQRNode(PQRType.P);
+        return (ends == 2);
+    }
+
+    /**
+     * Returns the leaves of the tree in the order they appear from left to
+     * right. When the tree has no R-node, this is a valid ordering.
+     * 
+     * @return The leaf labels in frontier order.
+     */
+    public int[] frontier() {
+        int[] order = new int[this.leafCount];
+        int k = 0;
 
-        // Create the leaf list
-        this.leaf = new Leaf[n];
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(this.root);
+        while (!stack.isEmpty()) {
+            Node v = stack.pop();
+            if (v instanceof Leaf) {
+                order[k++] = ((Leaf) v).getValue();
+            } else {
+                // Push children from last to first, so the first pops first
+                PQRNode p = (PQRNode) v;
+                Node child = p.getLastChild();
+                Node prevChild = null;
+                while (child != null) {
+                    stack.push(child);
+                    Node next = child.nextSibling(prevChild);
+                    prevChild = child;
+                    child = next;
+                }
+            }
+        }
 
-        // Create and insert leaves
-        for (int i = 0; i < n; i++) {
-            this.leaf[i] = new Leaf(i);
-            this.root.insertEnd(this.leaf[i]);
+        return order;
+    }
+
+    /**
+     * A node being walked by basis(), with what is known of its children so
+     * far. Positions refer to the frontier order.
+     */
+    private static class BasisFrame {
+
+        private final PQRNode node;
+        /**
+         * The position of the first leaf of the node.
+         */
+        private final int start;
+        /**
+         * The child being walked, and the one before it.
+         */
+        private Node child;
+        private Node previousChild;
+        /**
+         * The position of the first leaf of the last child done, or -1.
+         */
+        private int childStart;
+        /**
+         * The position after the last leaf of the first child.
+         */
+        private int firstChildEnd;
+
+        BasisFrame(PQRNode node, int start) {
+            this.node = node;
+            this.start = start;
+            this.child = node.getFirstChild();
+            this.previousChild = null;
+            this.childStart = -1;
+            this.firstChildEnd = -1;
         }
 
-        this.visitedNodes = new LinkedList<>();
+        /**
+         * Moves on to the next child, after adding the pair of the child done
+         * and the previous one to the basis if this is a Q- or R-node.
+         */
+        void childDone(int start, int end, int[] order, ArrayList<int[]> basis) {
+            if ((this.node.getType() != PQRType.P) && (this.childStart >= 0)) {
+                basis.add(Arrays.copyOfRange(order, this.childStart, end));
+            }
+            if (this.childStart < 0) {
+                this.firstChildEnd = end;
+            }
+            this.childStart = start;
+
+            Node next = this.child.nextSibling(this.previousChild);
+            this.previousChild = this.child;
+            this.child = next;
+        }
     }
 
     /**
-     * Adds one constraint set to the tree, updating its structure as necessary.
+     * Returns a small set of constraints that rebuilds this tree: reducing
+     * them in the order returned, on a universal tree with the same leaves,
+     * gives this tree again, up to the order of the children of P-nodes and
+     * the reversal of Q- and R-nodes. In any other order, the result is the
+     * same except that the children of an R-node may come out rotated.
+     * <p>
+     * The set has the leaves of every P-node except the root, the leaves of
+     * every two adjacent children of a Q- or R-node, and the leaves of the
+     * first and last children of every R-node, which make it infeasible. The
+     * leaves of a P-node in the middle of a Q-node are left out, as they are
+     * the intersection of the pairs on both sides of it. So there are at most
+     * as many constraints as edges in the tree, however long the history that
+     * built it. Replaying them is also how trees can be shipped compactly between
+     * processes.
+     * <p>
+     * The tree is not changed, so this can run concurrently with queries.
      * 
-     * @param c An array of integers that must be consecutive.
+     * @return The constraints, each node after its descendants.
      */
-    public void reduce(int[] c) {
-        if (c.length < 2) {
+    public int[][] basis() {
+        int[] order = this.frontier();
+        ArrayList<int[]> basis = new ArrayList<>();
+
+        ArrayList<BasisFrame> stack = new ArrayList<>();
+        stack.add(new BasisFrame(this.root, 0));
+        int k = 0;
+        while (!stack.isEmpty()) {
+            BasisFrame f = stack.get(stack.size() - 1);
+
+            if (f.child instanceof Leaf) {
+                f.childDone(k, k + 1, order, basis);
+                k++;
+            } else if (f.child != null) {
+                stack.add(new BasisFrame((PQRNode) f.child, k));
+            } else {
+                // Every child of the node is done
+                stack.remove(stack.size() - 1);
+                BasisFrame parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+
+                if (f.node.getType() == PQRType.R) {
+                    int first = f.firstChildEnd - f.start;
+                    int[] c = new int[first + (k - f.childStart)];
+                    System.arraycopy(order, f.start, c, 0, first);
+                    System.arraycopy(order, f.childStart, c, first, k - f.childStart);
+                    basis.add(c);
+                } else if ((f.node.getType() == PQRType.P) && (parent != null)) {
+                    boolean middle = (parent.node.getType() == PQRType.Q) && (parent.childStart >= 0)
+                            && (parent.node.getLastChild() != f.node);
+                    if (!middle) {
+                        basis.add(Arrays.copyOfRange(order, f.start, k));
+                    }
+                }
+
+                if (parent != null) {
+                    parent.childDone(f.start, k, order, basis);
+                }
+            }
+        }
+
+        return basis.toArray(new int[basis.size()][]);
+    }
+
+    /**
+     * A node being hashed by canonicalHash(), with the hashes of the children
+     * done so far.
+     */
+    private static class HashFrame {
+
+        private final PQRNode node;
+        private Node child;
+        private Node previousChild;
+        private int count;
+        /**
+         * The sum of the mixed hashes of the children, which ignores their
+         * order.
+         */
+        private long sum;
+        /**
+         * Polynomial hashes of the children read forwards and backwards, and
+         * the power of the base for the next child.
+         */
+        private long forward;
+        private long backward;
+        private long power;
+
+        HashFrame(PQRNode node) {
+            this.node = node;
+            this.child = node.getFirstChild();
+            this.previousChild = null;
+            this.count = 0;
+            this.sum = 0;
+            this.forward = 0;
+            this.backward = 0;
+            this.power = 1;
+        }
+
+        void childDone(long h) {
+            this.count++;
+            this.sum += mix(h);
+            this.forward = this.forward * HASH_BASE + h;
+            this.backward += h * this.power;
+            this.power *= HASH_BASE;
+
+            Node next = this.child.nextSibling(this.previousChild);
+            this.previousChild = this.child;
+            this.child = next;
+        }
+
+        long hash() {
+            switch (this.node.getType()) {
+                case P:
+                    return mix(this.sum + 0x50L * this.count);
+                case Q:
+                    return mix(Math.min(this.forward, this.backward) ^ 0x51L);
+                default:
+                    return mix((this.sum + 0x52L * this.count) ^ 0x52L);
+            }
+        }
+    }
+
+    /**
+     * Mixes the bits of a long (the finalizer of SplitMix64).
+     * 
+     * @param z A value.
+     * @return Its hash.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns a hash of the canonical form of the tree, computed bottom-up in
+     * linear time. It ignores the order of the children of P-nodes, and the
+     * reversal of Q-nodes, so equivalent trees have the same hash. The
+     * children of R-nodes are hashed like those of P-nodes, since their order
+     * depends on the order the constraints were added in.
+     * <p>
+     * The tree is not changed, so this can run concurrently with queries.
+     * 
+     * @return The hash.
+     */
+    public long canonicalHash() {
+        ArrayList<HashFrame> stack = new ArrayList<>();
+        stack.add(new HashFrame(this.root));
+        long h = 0;
+        while (!stack.isEmpty()) {
+            HashFrame f = stack.get(stack.size() - 1);
+            if (f.child instanceof Leaf) {
+                f.childDone(mix(((Leaf) f.child).getValue() + 1L));
+            } else if (f.child != null) {
+                stack.add(new HashFrame((PQRNode) f.child));
+            } else {
+                stack.remove(stack.size() - 1);
+                h = f.hash();
+                if (!stack.isEmpty()) {
+                    stack.get(stack.size() - 1).childDone(h);
+                }
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Returns the tree restricted to a subset of its leaves: its orderings are
+     * those of this tree, with the other leaves left out. Leaf i of the new
+     * tree is leaf subset[i] of this tree.
+     * <p>
+     * The subtrees without leaves of the subset are pruned, nodes left with a
+     * single child are replaced by it, and Q- and R-nodes left with two
+     * children become P-nodes. Only the nodes above the subset are visited,
+     * along with the children of the Q- and R-nodes among them that lie
+     * between the kept ones, which are walked to keep the order. So a subset
+     * that is a region of the frontier costs about its own size. The new tree
+     * shares nothing with this one.
+     * <p>
+     * This tree is not changed, apart from the compression of union-find
+     * paths, so this can run concurrently with queries.
+     * 
+     * @param subset The labels of the leaves to keep, without repetitions.
+     * @return The projected tree.
+     */
+    public PQRTree project(int[] subset) {
+        PQRTree t = new PQRTree(subset.length);
+        if (subset.length < 2) {
+            return t;
+        }
+
+        // Climb from each leaf of the subset, recording the marked children of
+        // each marked node, until reaching a node already marked
+        IdentityHashMap<Node, Integer> labels = new IdentityHashMap<>();
+        IdentityHashMap<PQRNode, ArrayList<Node>> marked = new IdentityHashMap<>();
+        for (int i = 0; i < subset.length; i++) {
+            Node v = this.leaf[subset[i]];
+            if (labels.put(v, i) != null) {
+                throw new IllegalArgumentException("Label " + subset[i] + " repeated");
+            }
+
+            PQRNode p = v.getParent();
+            while (p != null) {
+                ArrayList<Node> children = marked.get(p);
+                if (children != null) {
+                    children.add(v);
+                    break;
+                }
+                children = new ArrayList<>(2);
+                children.add(v);
+                marked.put(p, children);
+                v = p;
+                p = v.getParent();
+            }
+        }
+
+        // List the marked nodes top-down, so they can be built bottom-up
+        ArrayList<PQRNode> order = new ArrayList<>();
+        order.add(this.root);
+        for (int i = 0; i < order.size(); i++) {
+            for (Node child : marked.get(order.get(i))) {
+                if (child instanceof PQRNode) {
+                    order.add((PQRNode) child);
+                }
+            }
+        }
+
+        // The leaves of the new tree are detached from its universal root
+        t.root.destroy();
+        for (int i = 0; i < subset.length; i++) {
+            t.leaf[i].reset();
+        }
+
+        IdentityHashMap<Node, Node> built = new IdentityHashMap<>();
+        for (int i = order.size() - 1; i >= 0; i--) {
+            PQRNode v = order.get(i);
+            ArrayList<Node> children = marked.get(v);
+
+            // The children of Q- and R-nodes are kept in their order. They are
+            // found by walking both ways from one of them at the same pace, so
+            // the walk stays within about twice the span of the marked ones
+            if ((v.getType() != PQRType.P) && (children.size() > 1)) {
+                int missing = children.size() - 1;
+                Node start = children.get(0);
+                ArrayList<Node> left = new ArrayList<>();
+                ArrayList<Node> right = new ArrayList<>();
+                Node[] previous = {start, start};
+                Node[] child = {start.sibling0, start.sibling1};
+                while ((missing > 0) && ((child[0] != null) || (child[1] != null))) {
+                    for (int side = 0; side < 2; side++) {
+                        Node c = child[side];
+                        if (c == null) {
+                            continue;
+                        }
+                        if (labels.containsKey(c) || marked.containsKey(c)) {
+                            ((side == 0) ? left : right).add(c);
+                            missing--;
+                        }
+                        child[side] = c.nextSibling(previous[side]);
+                        previous[side] = c;
+                    }
+                }
+
+                children.clear();
+                for (int j = left.size() - 1; j >= 0; j--) {
+                    children.add(left.get(j));
+                }
+                children.add(start);
+                children.addAll(right);
+            }
+
+            if (children.size() == 1) {
+                Node only = children.get(0);
+                built.put(v, (only instanceof Leaf) ? t.leaf[labels.get(only)] : built.get(only));
+                continue;
+            }
+
+            PQRType type = (children.size() == 2) ? PQRType.P : v.getType();
+            PQRNode u = new PQRNode(type, t);
+            for (Node child : children) {
+                u.insertEnd((child instanceof Leaf) ? t.leaf[labels.get(child)] : built.get(child));
+            }
+            if (type == PQRType.R) {
+                t.hasRNode = true;
+            }
+            built.put(v, u);
+        }
+
+        t.root = (PQRNode) built.get(this.root);
+        t.covered = this.covered;
+        return t;
+    }
+
+    /**
+     * Adds to this tree every constraint of another tree over the same
+     * leaves, so that this tree represents the orderings valid for both.
+     * Where the two trees conflict, R-nodes are created, as they would be if
+     * both constraint sets had been added to one tree.
+     * <p>
+     * The other tree is replayed through its basis, so the work depends on its
+     * size rather than on the number of constraints that built it. It is not
+     * changed.
+     * 
+     * @param other A tree with the same number of leaves.
+     * @see PQRTree#basis()
+     */
+    public void merge(PQRTree other) {
+        if (other.leafCount != this.leafCount) {
+            throw new IllegalArgumentException("Trees have " + this.leafCount + " and " + other.leafCount
+                    + " leaves");
+        }
+
+        for (int[] c : other.basis()) {
+            this.reduce(c);
+        }
+        // The basis leaves out the root, whose constraint covers every leaf
+        if (other.covered && (this.failure == null)) {
+            this.covered = true;
+        }
+    }
+
+    /**
+     * Rebuilds the tree with new nodes allocated in depth-first order, so that
+     * each node is allocated right after its siblings and before the subtrees
+     * below them. After many reductions, the nodes of a subtree are scattered
+     * over the heap in the order they were created, and walking the tree
+     * misses the cache at almost every step. Fresh objects allocated in order
+     * lie next to each other in memory, so the walks up in bubble() and down
+     * in toString() and frontier() become mostly sequential.
+     * <p>
+     * The union-find structures are flattened as well: every child of a Q- or
+     * R-node points directly to the representative one, and the nodes kept
+     * only because they were in a union-find structure are dropped. The
+     * orderings represented by the tree, its labels and its ids are not
+     * changed.
+     * <p>
+     * This takes time linear in the size of the tree and must not run
+     * concurrently with any other operation on it.
+     * 
+     * @see PQRTree#setRelayoutInterval(long)
+     */
+    public void relayout() {
+        ChangeFeed feed = this.feed;
+        this.feed = null;
+
+        Arrays.fill(this.typeCounts, 0);
+        Arrays.fill(this.rankCounts, 0);
+        this.retainedCount = 0;
+        Arrays.fill(this.pertinent, null);
+        this.relayoutCount = this.constraintCount;
+
+        // Copy the nodes, each one with the copy of its parent on a parallel
+        // stack
+        PQRNode oldRoot = this.root;
+        this.root = new PQRNode(oldRoot.getType(), this);
+        ArrayList<PQRNode> nodes = new ArrayList<>();
+        ArrayList<PQRNode> copies = new ArrayList<>();
+        nodes.add(oldRoot);
+        copies.add(this.root);
+        while (!nodes.isEmpty()) {
+            PQRNode v = nodes.remove(nodes.size() - 1);
+            PQRNode u = copies.remove(copies.size() - 1);
+            if ((this.failure != null) && (this.failure.getNode() == v)) {
+                this.failure = new ReductionFailure(this.failure.getConstraintIndex(), u);
+            }
+
+            // The children are copied together, then their subtrees are
+            // visited in order
+            int first = nodes.size();
+            Node previous = null;
+            Node child = v.getFirstChild();
+            while (child != null) {
+                if (child instanceof Leaf) {
+                    int label = ((Leaf) child).getValue();
+                    this.leaf[label] = new Leaf(label);
+                    u.insertEnd(this.leaf[label]);
+                } else {
+                    PQRNode c = new PQRNode(((PQRNode) child).getType(), this);
+                    u.insertEnd(c);
+                    nodes.add((PQRNode) child);
+                    copies.add(c);
+                }
+                Node next = child.nextSibling(previous);
+                previous = child;
+                child = next;
+            }
+            Collections.reverse(nodes.subList(first, nodes.size()));
+            Collections.reverse(copies.subList(first, copies.size()));
+        }
+
+        this.feed = feed;
+        if (feed != null) {
+            feed.snapshot(this.root, this.constraintCount - 1);
+        }
+    }
+
+    /**
+     * Makes the batch operations relay the tree out when they end, once the
+     * given number of constraints was added since the last relayout.
+     * 
+     * @param constraints The number of constraints between relayouts, or 0
+     *        to never relay the tree out automatically.
+     * @see PQRTree#relayout()
+     */
+    public void setRelayoutInterval(long constraints) {
+        if (constraints < 0) {
+            throw new IllegalArgumentException("constraints must not be negative");
+        }
+        this.relayoutInterval = constraints;
+    }
+
+    /**
+     * Relays the tree out if the automatic relayout is due.
+     */
+    private void relayoutIfDue() {
+        if ((this.relayoutInterval > 0) && (this.constraintCount - this.relayoutCount >= this.relayoutInterval)) {
+            this.relayout();
+        }
+    }
+
+    /**
+     * Drops the subtree whose leaves are exactly the given ones, putting them
+     * back under the root with no constraint on them, as if the constraints
+     * inside the subtree had never been added. The subtree must be a child of
+     * a P-node root, or the whole tree.
+     * <p>
+     * Only the subtree is visited: each of its edges is removed once, so this
+     * takes time linear in its size.
+     * 
+     * @param labels The labels of the leaves of the subtree, without
+     *        repetitions.
+     * @throws IllegalStateException If no subtree has exactly those leaves.
+     * @see DynamicPQRTree
+     */
+    void release(int[] labels) {
+        if (labels.length < 2) {
             return;
         }
 
-        PQRNode r = this.bubble(c);
-        r = this.repairGray(r);
-        r.adjust();
-        this.uncolor(c);
+        // The subtree hangs from the root, unless it is the whole tree
+        PQRNode x;
+        if (labels.length == this.leafCount) {
+            x = this.root;
+            this.root = new PQRNode(PQRType.P, this);
+            this.covered = false;
+        } else {
+            Node v = this.leaf[labels[0]];
+            PQRNode p = v.getParent();
+            while (p != this.root) {
+                v = p;
+                p = v.getParent();
+            }
+            if ((this.root.getType() != PQRType.P) || !(v instanceof PQRNode)) {
+                throw new IllegalStateException("No subtree has exactly the given leaves");
+            }
+            x = (PQRNode) v;
+            this.root.removeChild(x);
+        }
+
+        // The nodes kept only by the union-find structures inside the subtree
+        // go with it. They hang from the children of its Q- and R-nodes.
+        ArrayList<PQRNode> nodes = new ArrayList<>();
+        IdentityHashMap<Node, Boolean> seen = new IdentityHashMap<>();
+        nodes.add(x);
+        for (int i = 0; i < nodes.size(); i++) {
+            PQRNode v = nodes.get(i);
+            Node previous = null;
+            Node child = v.getFirstChild();
+            while (child != null) {
+                if (child instanceof PQRNode) {
+                    nodes.add((PQRNode) child);
+                }
+                if (v.getType() != PQRType.P) {
+                    for (Node u = child.readNodeField(Journal.REPRESENTANT); seen.put(u, true) == null;
+                            u = u.readNodeField(Journal.REPRESENTANT)) {
+                        boolean retained = (u instanceof Leaf) ? (this.leaf[((Leaf) u).getValue()] != u)
+                                : ((PQRNode) u).isDeleted();
+                        if (retained) {
+                            this.retainedCount--;
+                            if (u.getRank() > 0) {
+                                this.rankCounts[u.getRank()]--;
+                            }
+                        }
+                    }
+                }
+                Node next = child.nextSibling(previous);
+                previous = child;
+                child = next;
+            }
+        }
+
+        // Remove every edge of the subtree, top-down, and free the leaves
+        int released = 0;
+        for (PQRNode v : nodes) {
+            while (v.getChildCount() > 0) {
+                Node child = v.getFirstChild();
+                v.removeChild(child);
+                if (child instanceof Leaf) {
+                    if (child.getRank() > 0) {
+                        this.rankCounts[child.getRank()]--;
+                    }
+                    child.reset();
+                    this.root.insertEnd(child);
+                    released++;
+                }
+            }
+            this.countDestroyed(v, false);
+            v.drop();
+        }
+        if (released != labels.length) {
+            throw new IllegalStateException("No subtree has exactly the given leaves");
+        }
+
+        this.hasRNode = (this.typeCounts[PQRType.R.ordinal()] > 0);
+        if (this.feed != null) {
+            this.feed.flush(this.root, -1, null);
+        }
     }
 
     /**
-     * Colors the tree with regards to the new constraint.
+     * Colors the tree with regards to the new constraint, given by the
+     * pertinent leaf array.
      * 
-     * @param c The constraint being added.
      * @return The least common ancestor (LCA) of all the pertinent nodes.
      *         This is the node that serves as the start for the updates to the
      *         tree.
      */
-    private PQRNode bubble(int[] c) {
-        LinkedList<Node> queue = new LinkedList<>();
+    private PQRNode bubble() {
+        ArrayDeque<Node> queue = new ArrayDeque<>();
         int offTheTop = 0;
 
         // First phase: count the pertinent children of each node
-        for (int i : c) {
-            this.leaf[i].visit();
-            queue.add(this.leaf[i]);
+        for (int i = 0; i < this.pertinentCount; i++) {
+            this.pertinent[i].visit();
+            queue.add(this.pertinent[i]);
         }
         while (queue.size() + offTheTop > 1) {
+            this.checkCancelled();
             Node v = queue.poll();
             PQRNode p = v.getParent();
 
@@ -109,15 +2000,16 @@ public class PQRTree {
 
         // Second phase: color the nodes and find the LCA
         queue.clear();
-        for (int i : c) {
-            this.leaf[i].setPertinentLeafCount(1);
-            queue.add(this.leaf[i]);
+        for (int i = 0; i < this.pertinentCount; i++) {
+            this.pertinent[i].setPertinentLeafCount(1);
+            queue.add(this.pertinent[i]);
         }
         while (!queue.isEmpty()) {
+            this.checkCancelled();
             Node v = queue.poll();
             Node p = v.getParent();
 
-            if (v.getPertinentLeafCount() == c.length) {
+            if (v.getPertinentLeafCount() == this.pertinentCount) {
                 return (PQRNode) v;
             }
 
@@ -137,6 +2029,124 @@ public class PQRTree {
         return null;
     }
 
+    /**
+     * Colors the tree like bubble(), one level at a time. The nodes of a level
+     * are the ones bubble() would have in its queue at the same time, in the
+     * same order, so the coloring is the same. The parent lookups, which walk
+     * the union-find structures, and the color of each node are computed in
+     * parallel. Counters and colored lists are then updated on the calling
+     * thread, in level order.
+     * <p>
+     * Concurrent path compressions may race, but every value written is an
+     * ancestor in the union-find tree, so any of them is correct.
+     * 
+     * @return The least common ancestor (LCA) of all the pertinent nodes.
+     */
+    private PQRNode parallelBubble() {
+        Node[] level = new Node[this.pertinentCount];
+        Node[] next = new Node[this.pertinentCount];
+        PQRNode[] parents = new PQRNode[this.pertinentCount];
+        boolean[] black = new boolean[this.pertinentCount];
+        int size;
+        int offTheTop = 0;
+
+        // First phase: count the pertinent children of each node
+        for (int i = 0; i < this.pertinentCount; i++) {
+            this.pertinent[i].visit();
+            level[i] = this.pertinent[i];
+        }
+        size = this.pertinentCount;
+        while (size + offTheTop > 1) {
+            resolveParents(level, size, parents);
+
+            int nextSize = 0;
+            for (int i = 0; i < size; i++) {
+                this.checkCancelled();
+                PQRNode p = parents[i];
+                if (p == null) {
+                    offTheTop = 1;
+                } else {
+                    if (!p.isVisited()) {
+                        next[nextSize++] = p;
+                        p.visit();
+                        this.visitedNodes.add(p);
+                    }
+                    p.setPertinentChildCount(p.getPertinentChildCount() + 1);
+                }
+            }
+
+            Node[] tmp = level;
+            level = next;
+            next = tmp;
+            size = nextSize;
+        }
+
+        // Second phase: color the nodes and find the LCA
+        for (int i = 0; i < this.pertinentCount; i++) {
+            this.pertinent[i].setPertinentLeafCount(1);
+            level[i] = this.pertinent[i];
+        }
+        size = this.pertinentCount;
+        while (size > 0) {
+            resolveParents(level, size, parents);
+            resolveColors(level, size, black);
+
+            int nextSize = 0;
+            for (int i = 0; i < size; i++) {
+                this.checkCancelled();
+                Node v = level[i];
+                PQRNode p = parents[i];
+
+                if (v.getPertinentLeafCount() == this.pertinentCount) {
+                    return (PQRNode) v;
+                }
+
+                v.setColor(black[i] ? Color.BLACK : Color.GRAY);
+
+                p.setPertinentChildCount(p.getPertinentChildCount() - 1);
+                p.setPertinentLeafCount(p.getPertinentLeafCount() + v.getPertinentLeafCount());
+                if (p.getPertinentChildCount() == 0) {
+                    next[nextSize++] = p;
+                }
+            }
+
+            Node[] tmp = level;
+            level = next;
+            next = tmp;
+            size = nextSize;
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds the parent of each node of a level of the parallel bubble.
+     */
+    private static void resolveParents(Node[] level, int size, PQRNode[] parents) {
+        if (size < MIN_PARALLEL_LEVEL) {
+            for (int i = 0; i < size; i++) {
+                parents[i] = level[i].getParent();
+            }
+        } else {
+            IntStream.range(0, size).parallel().forEach(i -> parents[i] = level[i].getParent());
+        }
+    }
+
+    /**
+     * Decides whether each node of a level of the parallel bubble is black.
+     * All the pertinent children of a node are in earlier levels, so they are
+     * already colored.
+     */
+    private static void resolveColors(Node[] level, int size, boolean[] black) {
+        if (size < MIN_PARALLEL_LEVEL) {
+            for (int i = 0; i < size; i++) {
+                black[i] = level[i].areAllChildrenBlack();
+            }
+        } else {
+            IntStream.range(0, size).parallel().forEach(i -> black[i] = level[i].areAllChildrenBlack());
+        }
+    }
+
     /**
      * Updates the colored tree, eliminating all gray nodes.
      * 
@@ -148,6 +2158,8 @@ public class PQRTree {
         PQRNode newLCA = r;
 
         while (v != null) {
+            this.checkCancelled();
+
             // Prepare the LCA
             if (newLCA.getType() == PQRType.P) {
                 if (v.getType() == PQRType.P) {
@@ -180,15 +2192,14 @@ public class PQRTree {
     }
 
     /**
-     * Resets the tree after the reduction.
-     * 
-     * @param c The constraint just added.
+     * Resets the tree after the reduction of the constraint in the pertinent
+     * leaf array.
      */
-    private void uncolor(int[] c) {
-        for (int i : c) {
-            this.leaf[i].cleanUp();
+    private void uncolor() {
+        for (int i = 0; i < this.pertinentCount; i++) {
+            this.pertinent[i].cleanUp();
 
-            PQRNode p = this.leaf[i].getParent();
+            PQRNode p = this.pertinent[i].getParent();
             if ((p != null) && (p.isVisited())) {
                 p.cleanUp();
                 this.visitedNodes.add(p);
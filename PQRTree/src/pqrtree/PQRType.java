@@ -5,6 +5,6 @@ package pqrtree;
  * P, Q, or R.
  * @author Joao
  */
-enum PQRType {
+public enum PQRType {
     P, Q, R;
 }
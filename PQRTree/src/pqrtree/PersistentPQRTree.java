@@ -0,0 +1,291 @@
+package pqrtree;
+
+import java.util.ArrayList;
+
+/**
+ * A persistent tree: adding a constraint returns a new version and leaves the
+ * old one as it was, so many versions can be alive at once, such as branches
+ * adding different constraints to a shared base.
+ * <p>
+ * All the versions derived from the same base share one set of nodes. A
+ * version only stores the fields that its reduction wrote, with their old and
+ * new values, so its memory is proportional to the work of the reduction, and
+ * every subtree it did not touch is shared with the version it came from. To
+ * use a version, the nodes are brought to it by reverting the versions on the
+ * way back to the common ancestor and replaying the ones on the way to it.
+ * Working on one version, or on versions close to each other, is then as fast
+ * as with a PQRTree, while switching between distant versions costs the work
+ * of the reductions between them.
+ * <p>
+ * Every version can be used from any thread. The operations on versions
+ * derived from the same base are serialized.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * PersistentPQRTree base = new PersistentPQRTree(n).reduce(new int[] {1, 2, 3});
+ * PersistentPQRTree a = base.reduce(new int[] {3, 4});
+ * PersistentPQRTree b = base.reduce(new int[] {1, 4});
+ * System.out.println(base + " " + a + " " + b);
+ * </pre>
+ *
+ * @author Joao
+ */
+public final class PersistentPQRTree {
+
+    /**
+     * The nodes shared by the versions derived from the same base.
+     */
+    private static final class Store {
+
+        private final PQRTree tree;
+        /**
+         * Logs the changes made since the current version was reached.
+         */
+        private final Journal history;
+        /**
+         * The version the nodes are at.
+         */
+        private PersistentPQRTree current;
+
+        Store(PQRTree tree) {
+            this.tree = tree;
+            this.history = new Journal();
+            this.tree.setHistory(this.history);
+        }
+    }
+
+    private final Store store;
+    /**
+     * The version this one was derived from, or null for the base.
+     */
+    private final PersistentPQRTree previous;
+    /**
+     * The number of versions before this one.
+     */
+    private final int depth;
+    /**
+     * The fields written since the previous version, or null for the base.
+     */
+    private final Journal diff;
+    /**
+     * The root and counters of the tree at this version.
+     */
+    private final PQRTree.Checkpoint checkpoint;
+
+    /**
+     * Builds the base version: an universal tree with n leaves.
+     *
+     * @param n The number of leaves in the tree.
+     */
+    public PersistentPQRTree(int n) {
+        this(new PQRTree(n));
+    }
+
+    /**
+     * Builds a base version from a tree, which is faster than adding its
+     * constraints one version at a time, and keeps no versions before it. The
+     * versions take the tree over, so it must not be used afterwards.
+     *
+     * @param tree The tree, without a change listener.
+     */
+    public PersistentPQRTree(PQRTree tree) {
+        super();
+
+        this.store = new Store(tree);
+        this.previous = null;
+        this.depth = 0;
+        this.diff = null;
+        this.checkpoint = this.store.tree.checkpoint();
+        this.store.current = this;
+    }
+
+    private PersistentPQRTree(PersistentPQRTree previous, Journal diff, PQRTree.Checkpoint checkpoint) {
+        super();
+
+        this.store = previous.store;
+        this.previous = previous;
+        this.depth = previous.depth + 1;
+        this.diff = diff;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Brings the nodes to this version. The caller must hold the lock of the
+     * store.
+     */
+    private void checkout() {
+        PersistentPQRTree from = this.store.current;
+        if (from == this) {
+            return;
+        }
+
+        // The path compressions done at the current version are dropped
+        this.store.history.undo();
+
+        // Revert up to the common ancestor, then replay down to this version
+        ArrayList<PersistentPQRTree> path = new ArrayList<>();
+        PersistentPQRTree to = this;
+        while (from.depth > to.depth) {
+            from.diff.revert();
+            from = from.previous;
+        }
+        while (to.depth > from.depth) {
+            path.add(to);
+            to = to.previous;
+        }
+        while (from != to) {
+            from.diff.revert();
+            from = from.previous;
+            path.add(to);
+            to = to.previous;
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            path.get(i).diff.replay();
+        }
+
+        this.store.tree.restore(this.checkpoint);
+        this.store.current = this;
+    }
+
+    /**
+     * Adds one constraint set, leaving this version unchanged.
+     *
+     * @param c The labels that must be consecutive, without repetitions.
+     * @return The new version.
+     */
+    public PersistentPQRTree reduce(int[] c) {
+        for (int e : c) {
+            if ((e < 0) || (e >= this.size())) {
+                throw new IllegalArgumentException("Label " + e + " out of range");
+            }
+        }
+
+        synchronized (this.store) {
+            this.checkout();
+            this.store.tree.reduce(c);
+            PersistentPQRTree v = new PersistentPQRTree(this, this.store.history.seal(),
+                    this.store.tree.checkpoint());
+            this.store.current = v;
+            return v;
+        }
+    }
+
+    /**
+     * Returns the version this one was derived from.
+     *
+     * @return The previous version, or null for the base.
+     */
+    public PersistentPQRTree getPrevious() {
+        return this.previous;
+    }
+
+    /**
+     * Returns the number of field writes this version stores, which its
+     * memory is proportional to.
+     *
+     * @return The number of writes, 0 for the base.
+     */
+    public int getChangeCount() {
+        return (this.diff != null) ? this.diff.size() : 0;
+    }
+
+    /**
+     * Returns the number of leaves in the tree.
+     *
+     * @return The number of leaves.
+     */
+    public int size() {
+        return this.store.tree.size();
+    }
+
+    /**
+     * Tells whether the constraints of this version have no valid ordering.
+     *
+     * @return true if the tree has an R-node.
+     * @see PQRTree#hasRNode()
+     */
+    public boolean hasRNode() {
+        return this.checkpoint.hasRNode();
+    }
+
+    /**
+     * Tests whether a set of leaves is consecutive in every ordering of this
+     * version.
+     *
+     * @param c The labels of the leaves, without repetitions.
+     * @return true if the leaves are consecutive in every ordering.
+     * @see PQRTree#isConsecutive(int[])
+     */
+    public boolean isConsecutive(int[] c) {
+        synchronized (this.store) {
+            this.checkout();
+            return this.store.tree.isConsecutive(c);
+        }
+    }
+
+    /**
+     * Returns the leaves of this version in the order they appear from left
+     * to right.
+     *
+     * @return The leaf labels in frontier order.
+     * @see PQRTree#frontier()
+     */
+    public int[] frontier() {
+        synchronized (this.store) {
+            this.checkout();
+            return this.store.tree.frontier();
+        }
+    }
+
+    /**
+     * Returns a hash of the canonical form of this version.
+     *
+     * @return The hash.
+     * @see PQRTree#canonicalHash()
+     */
+    public long canonicalHash() {
+        synchronized (this.store) {
+            this.checkout();
+            return this.store.tree.canonicalHash();
+        }
+    }
+
+    /**
+     * Returns the statistics of this version, from its counters.
+     *
+     * @return The statistics.
+     * @see PQRTree#stats()
+     */
+    public TreeStats stats() {
+        synchronized (this.store) {
+            this.checkout();
+            return this.store.tree.stats();
+        }
+    }
+
+    /**
+     * Copies this version into a new PQRTree, sharing nothing with it, which
+     * costs the size of the tree.
+     *
+     * @return The copy.
+     */
+    public PQRTree toPQRTree() {
+        int[] all = new int[this.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        synchronized (this.store) {
+            this.checkout();
+            return this.store.tree.project(all);
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this.store) {
+            this.checkout();
+            return this.store.tree.toString();
+        }
+    }
+}
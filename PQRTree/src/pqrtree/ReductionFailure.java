@@ -0,0 +1,59 @@
+package pqrtree;
+
+/**
+ * The first infeasible constraint found by a tree in strict mode.
+ *
+ * @author Joao
+ * @see ReductionMode#STRICT_PQ
+ */
+public class ReductionFailure {
+
+    /**
+     * The index of the constraint, counting every constraint given to the tree
+     * since it was built or reset.
+     */
+    private final long constraintIndex;
+    /**
+     * The R-node created by the constraint.
+     */
+    private final PQRNode node;
+
+    ReductionFailure(long constraintIndex, PQRNode node) {
+        super();
+
+        this.constraintIndex = constraintIndex;
+        this.node = node;
+    }
+
+    /**
+     * Returns the position of the failing constraint among all the
+     * constraints given to the tree, starting at 0.
+     *
+     * @return The index of the constraint.
+     */
+    public long getConstraintIndex() {
+        return this.constraintIndex;
+    }
+
+    PQRNode getNode() {
+        return this.node;
+    }
+
+    /**
+     * Returns the string representation of the R-node created by the failing
+     * constraint. It is only built when asked for. A tree in strict mode is
+     * not changed after a failure, so the subtree is still the one the
+     * constraint left.
+     *
+     * @return The offending subtree.
+     * @see PQRTree#toString()
+     */
+    public String getSubtree() {
+        return this.node.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "constraint " + this.constraintIndex + " creates " + this.getSubtree();
+    }
+}
@@ -0,0 +1,34 @@
+package pqrtree;
+
+/**
+ * How a PQRTree handles constraints that make the instance infeasible, i.e.,
+ * that create or extend an R-node.
+ *
+ * @author Joao
+ */
+public enum ReductionMode {
+    /**
+     * Every constraint is fully added, including the ones under R-nodes. The
+     * tree describes the structure of the infeasible parts of the instance.
+     */
+    PQR,
+    /**
+     * The tree only answers whether the instance is feasible. The first
+     * constraint that creates an R-node is recorded as a ReductionFailure,
+     * and every later constraint is ignored until the tree leaves this mode.
+     */
+    STRICT_PQ,
+    /**
+     * Constraints whose LCA is already an R-node are checked but not added,
+     * so R-nodes keep the children they had when they were created. The rest
+     * of the tree is updated as in PQR mode.
+     */
+    FROZEN_R,
+    /**
+     * Each constraint is added tentatively. One that creates an R-node is
+     * rolled back, in time proportional to the work it did, and recorded as
+     * rejected. The tree stays free of R-nodes and represents the greedy
+     * maximal consistent subset of the constraints, taken in order.
+     */
+    GREEDY_PQ;
+}
@@ -0,0 +1,283 @@
+package pqrtree;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the trees built for constraint sets, so that an instance seen
+ * before is not reduced again.
+ * <p>
+ * Instances are keyed by their number of elements and a 128-bit fingerprint
+ * of their constraint set, which ignores the order of the constraints, the
+ * order of the elements in each constraint, and the constraints with less
+ * than two elements. Each entry keeps the basis of the tree, which rebuilds it
+ * much faster than the original constraints, and its frontier. The entries
+ * use at most a fixed amount of memory: when it is exceeded, the least
+ * recently used ones are evicted.
+ * <p>
+ * The cache can be shared by several threads.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * ResultCache cache = new ResultCache(256 &lt;&lt; 20);
+ * PQRTree tree = cache.solve(n, constraints);
+ * System.out.println(cache.getHitRate());
+ * </pre>
+ *
+ * @author Joao
+ * @see PQRTree#basis()
+ */
+public class ResultCache {
+
+    /**
+     * The fingerprint of an instance.
+     */
+    static final class Key {
+
+        private final int n;
+        private final long h1;
+        private final long h2;
+
+        private Key(int n, long h1, long h2) {
+            this.n = n;
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return (this.n == k.n) && (this.h1 == k.h1) && (this.h2 == k.h2);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (this.h1 ^ (this.h1 >>> 32));
+        }
+    }
+
+    /**
+     * What is kept of a tree.
+     */
+    static final class Snapshot {
+
+        private final int[][] basis;
+        private final int[] frontier;
+        private final boolean hasRNode;
+        private final long canonicalHash;
+        /**
+         * The estimated heap used by the entry.
+         */
+        private final long bytes;
+
+        private Snapshot(PQRTree tree) {
+            this.basis = tree.basis();
+            this.frontier = tree.frontier();
+            this.hasRNode = tree.hasRNode();
+            this.canonicalHash = tree.canonicalHash();
+
+            long b = 128 + 16 + 4L * this.frontier.length + 16 + 4L * this.basis.length;
+            for (int[] c : this.basis) {
+                b += 16 + 4L * c.length;
+            }
+            this.bytes = b;
+        }
+
+        int[][] getBasis() {
+            return this.basis;
+        }
+
+        int[] getFrontier() {
+            return this.frontier;
+        }
+
+        boolean hasRNode() {
+            return this.hasRNode;
+        }
+
+        long getCanonicalHash() {
+            return this.canonicalHash;
+        }
+    }
+
+    /**
+     * The maximum estimated heap used by the entries.
+     */
+    private final long maxBytes;
+    /**
+     * The entries, from the least to the most recently used.
+     */
+    private final LinkedHashMap<Key, Snapshot> entries;
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Builds an empty cache.
+     *
+     * @param maxBytes The maximum estimated heap used by the entries.
+     */
+    public ResultCache(long maxBytes) {
+        super();
+
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.bytes = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * Returns the tree of an instance, from the cache if it was seen before,
+     * or by reducing its constraints otherwise.
+     *
+     * @param n The number of elements of the instance.
+     * @param constraints The constraints of the instance.
+     * @return A new tree, equivalent to the one built by reducing the
+     *         constraints on a universal tree with n elements.
+     */
+    public PQRTree solve(int n, int[][] constraints) {
+        Key key = key(n, constraints);
+        Snapshot s = this.get(key);
+
+        PQRTree tree = new PQRTree(n);
+        for (int[] c : (s != null) ? s.getBasis() : constraints) {
+            tree.reduce(c);
+        }
+        if (s == null) {
+            this.put(key, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Computes the fingerprint of an instance. Each constraint is hashed as a
+     * sum over its elements, and the set as a sum over its constraints, so
+     * neither order matters.
+     *
+     * @param n The number of elements.
+     * @param constraints The constraints.
+     * @return The key of the instance.
+     */
+    static Key key(int n, int[][] constraints) {
+        long h1 = 0;
+        long h2 = 0;
+        for (int[] c : constraints) {
+            if (c.length < 2) {
+                continue;
+            }
+            long a = 0;
+            long b = 0;
+            for (int e : c) {
+                a += PQRTree.mix(e + 0x9E3779B97F4A7C15L);
+                b += PQRTree.mix(e ^ 0xC2B2AE3D27D4EB4FL);
+            }
+            h1 += PQRTree.mix(a + c.length);
+            h2 += PQRTree.mix(b ^ (31L * c.length));
+        }
+        return new Key(n, h1, h2);
+    }
+
+    /**
+     * Looks an instance up, counting a hit or a miss.
+     *
+     * @param key The key of the instance.
+     * @return What is kept of its tree, or null.
+     */
+    synchronized Snapshot get(Key key) {
+        Snapshot s = this.entries.get(key);
+        if (s != null) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+        return s;
+    }
+
+    /**
+     * Stores the tree of an instance, evicting the least recently used
+     * entries if needed. A tree too large for the whole cache is not stored.
+     *
+     * @param key The key of the instance.
+     * @param tree Its tree.
+     */
+    void put(Key key, PQRTree tree) {
+        Snapshot s = new Snapshot(tree);
+
+        synchronized (this) {
+            if (s.bytes > this.maxBytes) {
+                return;
+            }
+
+            Snapshot old = this.entries.put(key, s);
+            if (old != null) {
+                this.bytes -= old.bytes;
+            }
+            this.bytes += s.bytes;
+
+            Iterator<Map.Entry<Key, Snapshot>> i = this.entries.entrySet().iterator();
+            while (this.bytes > this.maxBytes) {
+                this.bytes -= i.next().getValue().bytes;
+                i.remove();
+                this.evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes every entry. The counters are kept.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the estimated heap used by the entries.
+     *
+     * @return The number of bytes.
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * Returns the fraction of lookups that found their instance.
+     *
+     * @return The hit rate, or 0 if there was no lookup.
+     */
+    public synchronized double getHitRate() {
+        long lookups = this.hits + this.misses;
+        return (lookups == 0) ? 0 : (double) this.hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries=" + this.entries.size() + " bytes=" + this.bytes + " hits=" + this.hits + " misses="
+                + this.misses + " evictions=" + this.evictions;
+    }
+}
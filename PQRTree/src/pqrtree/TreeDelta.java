@@ -0,0 +1,285 @@
+package pqrtree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The structural changes made to a tree by one operation, for consumers that
+ * keep their own view of the tree up to date without reading all of it again.
+ * <p>
+ * Nodes are named by ids: a leaf by its label, and an internal node by a
+ * negative number, given when the node is created and never reused by the
+ * tree. A delta has three parts, applied in this order:
+ * <ul>
+ * <li>The operations, in the order the tree made them:
+ * <ul>
+ * <li>CREATE: a new internal node, with the ordinal of its type as argument;
+ * <li>DESTROY: an internal node is gone, with no parent and no children left;
+ * <li>RETYPE: an internal node changes type, with the ordinal of the new type
+ * as argument;
+ * <li>MOVE: a node leaves its parent, if it has one, and becomes a child of
+ * the argument, unless it is NONE;
+ * <li>MERGE: every child of the node becomes a child of the argument.
+ * </ul>
+ * <li>The links: the two siblings of each node whose siblings changed. Like in
+ * the tree, the siblings of a node are not ordered: the next sibling of a node
+ * is the one of the two that is not the sibling it was reached from.
+ * <li>The ends: the first and last children of each internal node whose first
+ * or last child changed.
+ * </ul>
+ * Applying them turns a view of the tree before the operation into a view of
+ * the tree after it, and the children of any node can then be listed in order
+ * from its first child through the links. A delta only holds what the
+ * operation did, so its size is proportional to the work of the operation,
+ * not to the size of the tree. For a merge, a view may reparent the children
+ * lazily, as the tree does with its union-find structures.
+ * <p>
+ * A snapshot delta describes the whole tree, as if built from nothing. It is
+ * published when the listener is set and whenever the tree is rebuilt, as by
+ * PQRTree.reset(int) and PQRTree.relayout(), which give new ids to all the
+ * nodes. A view must be cleared before a snapshot is applied.
+ * <p>
+ * Deltas can be written to a stream and read back, to replicate a tree in
+ * other processes.
+ *
+ * @author Joao
+ * @see PQRTree#setChangeListener(java.util.function.Consumer)
+ */
+public class TreeDelta {
+
+    /**
+     * The id standing for no node.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+
+    /*
+     * Codes of the operations.
+     */
+    public static final byte CREATE = 0;
+    public static final byte DESTROY = 1;
+    public static final byte RETYPE = 2;
+    public static final byte MOVE = 3;
+    public static final byte MERGE = 4;
+
+    private final boolean snapshot;
+    private final long constraintIndex;
+    private final long root;
+    private final long lca;
+
+    private final byte[] operations;
+    private final long[] operationNodes;
+    private final long[] operationArguments;
+    private final long[] linked;
+    private final long[] links;
+    private final long[] ended;
+    private final long[] ends;
+
+    TreeDelta(boolean snapshot, long constraintIndex, long root, long lca, byte[] operations,
+            long[] operationNodes, long[] operationArguments, long[] linked, long[] links, long[] ended,
+            long[] ends) {
+        super();
+
+        this.snapshot = snapshot;
+        this.constraintIndex = constraintIndex;
+        this.root = root;
+        this.lca = lca;
+        this.operations = operations;
+        this.operationNodes = operationNodes;
+        this.operationArguments = operationArguments;
+        this.linked = linked;
+        this.links = links;
+        this.ended = ended;
+        this.ends = ends;
+    }
+
+    /**
+     * Tells whether this delta describes the whole tree, replacing any view
+     * built so far.
+     *
+     * @return true for a snapshot.
+     */
+    public boolean isSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Returns the index of the constraint that made the changes, counting
+     * every constraint given to the tree since it was built or reset.
+     *
+     * @return The index, or -1 if the changes were not made by a constraint.
+     */
+    public long getConstraintIndex() {
+        return this.constraintIndex;
+    }
+
+    /**
+     * Returns the root of the tree after the changes.
+     *
+     * @return The id of the root.
+     */
+    public long getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Returns the root of a subtree holding every change. For a constraint,
+     * it is the LCA of its leaves after the reduction.
+     *
+     * @return The id of the node.
+     */
+    public long getLca() {
+        return this.lca;
+    }
+
+    /*
+     * The parts of the delta. The arrays are shared by every reader of the
+     * delta, so they must not be changed.
+     */
+
+    /**
+     * Returns the codes of the operations, in order.
+     *
+     * @return The codes.
+     */
+    public byte[] getOperations() {
+        return this.operations;
+    }
+
+    /**
+     * Returns the node of each operation.
+     *
+     * @return The ids.
+     */
+    public long[] getOperationNodes() {
+        return this.operationNodes;
+    }
+
+    /**
+     * Returns the argument of each operation: a type ordinal, a parent or
+     * NONE.
+     *
+     * @return The arguments.
+     */
+    public long[] getOperationArguments() {
+        return this.operationArguments;
+    }
+
+    /**
+     * Returns the nodes whose siblings changed.
+     *
+     * @return The ids.
+     */
+    public long[] getLinked() {
+        return this.linked;
+    }
+
+    /**
+     * Returns the siblings of the nodes whose siblings changed: entries 2i
+     * and 2i + 1 are the siblings of node getLinked()[i], or NONE.
+     *
+     * @return The ids.
+     */
+    public long[] getLinks() {
+        return this.links;
+    }
+
+    /**
+     * Returns the internal nodes whose first or last child changed.
+     *
+     * @return The ids.
+     */
+    public long[] getEnded() {
+        return this.ended;
+    }
+
+    /**
+     * Returns the first and last children of the nodes whose ends changed:
+     * entries 2i and 2i + 1 are those of node getEnded()[i], or NONE.
+     *
+     * @return The ids.
+     */
+    public long[] getEnds() {
+        return this.ends;
+    }
+
+    /**
+     * Returns the number of entries of the delta, which measures its size.
+     *
+     * @return The number of operations, links and ends.
+     */
+    public int size() {
+        return this.operations.length + this.linked.length + this.ended.length;
+    }
+
+    /**
+     * Writes the delta to a stream.
+     *
+     * @param out The stream.
+     * @throws IOException If writing fails.
+     * @see TreeDelta#read(java.io.DataInput)
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(this.snapshot);
+        out.writeLong(this.constraintIndex);
+        out.writeLong(this.root);
+        out.writeLong(this.lca);
+
+        out.writeInt(this.operations.length);
+        out.write(this.operations);
+        writeIds(out, this.operationNodes);
+        writeIds(out, this.operationArguments);
+        writeIds(out, this.linked);
+        writeIds(out, this.links);
+        writeIds(out, this.ended);
+        writeIds(out, this.ends);
+    }
+
+    /**
+     * Reads a delta written by write(DataOutput).
+     *
+     * @param in The stream.
+     * @return The delta.
+     * @throws IOException If reading fails.
+     */
+    public static TreeDelta read(DataInput in) throws IOException {
+        boolean snapshot = in.readBoolean();
+        long constraintIndex = in.readLong();
+        long root = in.readLong();
+        long lca = in.readLong();
+
+        byte[] operations = new byte[in.readInt()];
+        in.readFully(operations);
+        long[] operationNodes = readIds(in);
+        long[] operationArguments = readIds(in);
+        long[] linked = readIds(in);
+        long[] links = readIds(in);
+        long[] ended = readIds(in);
+        long[] ends = readIds(in);
+
+        return new TreeDelta(snapshot, constraintIndex, root, lca, operations, operationNodes,
+                operationArguments, linked, links, ended, ends);
+    }
+
+    private static void writeIds(DataOutput out, long[] ids) throws IOException {
+        out.writeInt(ids.length);
+        for (long id : ids) {
+            out.writeLong(id);
+        }
+    }
+
+    private static long[] readIds(DataInput in) throws IOException {
+        long[] ids = new long[in.readInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readLong();
+        }
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return (this.snapshot ? "snapshot" : "delta") + " constraint=" + this.constraintIndex + " root="
+                + this.root + " lca=" + this.lca + " operations=" + this.operations.length + " linked="
+                + this.linked.length + " ended=" + this.ended.length;
+    }
+}
@@ -0,0 +1,136 @@
+package pqrtree;
+
+/**
+ * A snapshot of the size of a tree, for monitoring.
+ * <p>
+ * The node counts, the rank distribution and the heap estimate are kept up to
+ * date by the tree as it changes, so taking a snapshot costs nothing. The
+ * depth and the largest P-node arity can only be measured by walking the
+ * tree, so they are only filled in by PQRTree.stats(true).
+ *
+ * @author Joao
+ * @see PQRTree#stats()
+ */
+public class TreeStats {
+
+    /**
+     * Estimated shallow sizes, in bytes, of a leaf and of an internal node on
+     * a 64-bit JVM with compressed references.
+     */
+    static final int LEAF_BYTES = 48;
+    static final int NODE_BYTES = 88;
+
+    private final int leafCount;
+    private final long pCount;
+    private final long qCount;
+    private final long rCount;
+    private final long retainedCount;
+    private final long[] rankCounts;
+    private final long heapBytes;
+    private final int depth;
+    private final int maxPArity;
+
+    TreeStats(int leafCount, long pCount, long qCount, long rCount, long retainedCount, long[] rankCounts,
+            long heapBytes, int depth, int maxPArity) {
+        super();
+
+        this.leafCount = leafCount;
+        this.pCount = pCount;
+        this.qCount = qCount;
+        this.rCount = rCount;
+        this.retainedCount = retainedCount;
+        this.rankCounts = rankCounts;
+        this.heapBytes = heapBytes;
+        this.depth = depth;
+        this.maxPArity = maxPArity;
+    }
+
+    public int getLeafCount() {
+        return this.leafCount;
+    }
+
+    public long getPCount() {
+        return this.pCount;
+    }
+
+    public long getQCount() {
+        return this.qCount;
+    }
+
+    public long getRCount() {
+        return this.rCount;
+    }
+
+    /**
+     * Returns the number of nodes removed from the tree but kept because they
+     * may be part of the union-find structure of the children of a Q- or
+     * R-node.
+     *
+     * @return The number of retained nodes.
+     */
+    public long getRetainedCount() {
+        return this.retainedCount;
+    }
+
+    /**
+     * Returns how many nodes have each union-find rank. Entry k is the number
+     * of nodes of rank k, counting the leaves, the internal nodes and the
+     * retained nodes. Union by rank keeps the ranks logarithmic, so only the
+     * first entries are ever non-zero.
+     *
+     * @return The number of nodes by rank.
+     */
+    public long[] getRankCounts() {
+        return this.rankCounts.clone();
+    }
+
+    /**
+     * Returns an estimate of the heap used by the tree: the nodes, including
+     * the retained ones, and the arrays of the tree.
+     *
+     * @return The estimated number of bytes.
+     */
+    public long getHeapBytes() {
+        return this.heapBytes;
+    }
+
+    /**
+     * Returns the number of edges in the longest path from the root to a
+     * leaf.
+     *
+     * @return The depth, or -1 if it was not measured.
+     */
+    public int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * Returns the largest number of children of a P-node.
+     *
+     * @return The arity, 0 if there is no P-node, or -1 if it was not
+     *         measured.
+     */
+    public int getMaxPArity() {
+        return this.maxPArity;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("leaves=").append(this.leafCount);
+        s.append(" P=").append(this.pCount);
+        s.append(" Q=").append(this.qCount);
+        s.append(" R=").append(this.rCount);
+        s.append(" retained=").append(this.retainedCount);
+        s.append(" ranks=[");
+        for (int k = 0; k < this.rankCounts.length; k++) {
+            s.append((k > 0) ? " " : "").append(this.rankCounts[k]);
+        }
+        s.append("] heap=").append(this.heapBytes);
+        if (this.depth >= 0) {
+            s.append(" depth=").append(this.depth);
+            s.append(" maxPArity=").append(this.maxPArity);
+        }
+        return s.toString();
+    }
+}
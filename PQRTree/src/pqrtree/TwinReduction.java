@@ -0,0 +1,295 @@
+package pqrtree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Preprocessing that collapses twin elements before building a PQR-tree.
+ * <p>
+ * Two elements are twins when they belong to exactly the same constraints.
+ * Only one representative of each class of twins takes part in the
+ * reductions, which makes every constraint shorter and the tree smaller while
+ * it is being built. Each representative is then replaced by a P-node holding
+ * its class.
+ * <p>
+ * The resulting tree is the tree of the instance with one extra constraint per
+ * class of twins, forcing the class to be consecutive. Such a constraint never
+ * changes whether the instance has the consecutive-ones property: twins in a
+ * valid ordering can always be gathered next to one of them. So the tree has
+ * an R-node exactly when the original tree has one, and every ordering it
+ * represents is valid for the original instance, but orderings that split a
+ * class of twins are not represented.
+ * <p>
+ * The constraints are kept in CSR form: constraint i is made of the elements
+ * elements[offsets[i]] to elements[offsets[i + 1] - 1]. Elements must not be
+ * repeated inside a constraint.
+ * <p>
+ * <b>Usage:</b>
+ *
+ * <pre>
+ * TwinReduction t = TwinReduction.fromConstraints(n, constraints);
+ * PQRTree tree = t.solve();
+ * </pre>
+ *
+ * @author Joao
+ */
+public class TwinReduction {
+
+    /**
+     * The number of elements of the instance.
+     */
+    private final int n;
+    /**
+     * Start of each constraint in the elements array, plus the end of the last
+     * one.
+     */
+    private final int[] offsets;
+    /**
+     * The elements of all the constraints, one after the other.
+     */
+    private final int[] elements;
+    /**
+     * The representative of the twin class of each element. An element is a
+     * representative when it is its own representative.
+     */
+    private final int[] representative;
+    /**
+     * The number of twin classes.
+     */
+    private int classCount;
+
+    /**
+     * Builds the preprocessing for an instance given in CSR form.
+     *
+     * @param n The number of elements, labeled from 0 to n - 1.
+     * @param offsets Start of each constraint in the elements array, followed
+     *        by the total number of elements.
+     * @param elements The elements of all the constraints, one after the
+     *        other.
+     */
+    public TwinReduction(int n, int[] offsets, int[] elements) {
+        super();
+
+        this.n = n;
+        this.offsets = offsets;
+        this.elements = elements;
+        this.representative = new int[n];
+
+        this.findTwins();
+    }
+
+    /**
+     * Builds the preprocessing for an instance given as a list of constraints.
+     *
+     * @param n The number of elements, labeled from 0 to n - 1.
+     * @param constraints The sets of elements that must be consecutive.
+     * @return The preprocessing of the instance.
+     */
+    public static TwinReduction fromConstraints(int n, int[][] constraints) {
+        int[] offsets = new int[constraints.length + 1];
+        for (int i = 0; i < constraints.length; i++) {
+            offsets[i + 1] = offsets[i] + constraints[i].length;
+        }
+
+        int[] elements = new int[offsets[constraints.length]];
+        for (int i = 0; i < constraints.length; i++) {
+            System.arraycopy(constraints[i], 0, elements, offsets[i], constraints[i].length);
+        }
+
+        return new TwinReduction(n, offsets, elements);
+    }
+
+    /**
+     * Builds the preprocessing for an instance given as a 0/1 matrix, in which
+     * each row is a constraint and each column is an element.
+     *
+     * @param matrix The matrix, with matrix[i][j] set if constraint i contains
+     *        element j. Every row must have the same length.
+     * @return The preprocessing of the instance.
+     */
+    public static TwinReduction fromMatrix(boolean[][] matrix) {
+        int n = (matrix.length == 0) ? 0 : matrix[0].length;
+
+        int[] offsets = new int[matrix.length + 1];
+        for (int i = 0; i < matrix.length; i++) {
+            int count = 0;
+            for (boolean b : matrix[i]) {
+                if (b) {
+                    count++;
+                }
+            }
+            offsets[i + 1] = offsets[i] + count;
+        }
+
+        int[] elements = new int[offsets[matrix.length]];
+        int k = 0;
+        for (boolean[] row : matrix) {
+            for (int j = 0; j < n; j++) {
+                if (row[j]) {
+                    elements[k++] = j;
+                }
+            }
+        }
+
+        return new TwinReduction(n, offsets, elements);
+    }
+
+    /**
+     * Mixes the index of a constraint into a 64-bit hash value.
+     *
+     * @param i A constraint index.
+     * @return The hash of the index.
+     */
+    private static long mix(long i) {
+        i = (i + 1) * 0x9e3779b97f4a7c15L;
+        i ^= i >>> 31;
+        i *= 0xbf58476d1ce4e5b9L;
+        i ^= i >>> 29;
+        return i;
+    }
+
+    /**
+     * Groups the elements into twin classes. The columns are hashed first, and
+     * elements with the same hash are compared constraint by constraint, so
+     * that hash collisions never merge different columns.
+     */
+    private void findTwins() {
+        int m = this.offsets.length - 1;
+
+        // Hash each column and count its entries
+        long[] hash = new long[this.n];
+        int[] degree = new int[this.n];
+        for (int i = 0; i < m; i++) {
+            long h = mix(i);
+            for (int k = this.offsets[i]; k < this.offsets[i + 1]; k++) {
+                hash[this.elements[k]] += h;
+                degree[this.elements[k]]++;
+            }
+        }
+
+        // Transpose, listing the constraints of each element in order
+        int[] columnStart = new int[this.n + 1];
+        for (int j = 0; j < this.n; j++) {
+            columnStart[j + 1] = columnStart[j] + degree[j];
+        }
+        int[] column = new int[columnStart[this.n]];
+        int[] fill = new int[this.n];
+        for (int i = 0; i < m; i++) {
+            for (int k = this.offsets[i]; k < this.offsets[i + 1]; k++) {
+                int j = this.elements[k];
+                column[columnStart[j] + fill[j]++] = i;
+            }
+        }
+
+        // Each hash value keeps the representatives of the classes having it
+        HashMap<Long, List<Integer>> classes = new HashMap<>();
+        this.classCount = 0;
+        for (int j = 0; j < this.n; j++) {
+            List<Integer> candidates = classes.get(hash[j]);
+            if (candidates == null) {
+                candidates = new ArrayList<>(1);
+                classes.put(hash[j], candidates);
+            }
+
+            this.representative[j] = j;
+            for (int r : candidates) {
+                if (sameColumn(column, columnStart, r, j)) {
+                    this.representative[j] = r;
+                    break;
+                }
+            }
+            if (this.representative[j] == j) {
+                candidates.add(j);
+                this.classCount++;
+            }
+        }
+    }
+
+    /**
+     * Tests whether two elements belong to exactly the same constraints.
+     */
+    private static boolean sameColumn(int[] column, int[] columnStart, int a, int b) {
+        int length = columnStart[a + 1] - columnStart[a];
+        if (length != columnStart[b + 1] - columnStart[b]) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (column[columnStart[a] + k] != column[columnStart[b] + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the PQR-tree of the instance with every class of twins made
+     * consecutive. The constraints are reduced with one representative per
+     * class, and the remaining twins are attached to their representatives
+     * afterwards. A constraint that shrinks to a single representative is
+     * dropped, since the P-node of the class already keeps it consecutive.
+     *
+     * @return The tree, over the original n elements.
+     */
+    public PQRTree solve() {
+        PQRTree tree = new PQRTree(this.n);
+        int m = this.offsets.length - 1;
+
+        int[] buffer = new int[this.classCount];
+        for (int i = 0; i < m; i++) {
+            int length = 0;
+            for (int k = this.offsets[i]; k < this.offsets[i + 1]; k++) {
+                int j = this.elements[k];
+                if (this.representative[j] == j) {
+                    buffer[length++] = j;
+                }
+            }
+            if (length > 1) {
+                int[] c = new int[length];
+                System.arraycopy(buffer, 0, c, 0, length);
+                tree.reduce(c);
+            }
+        }
+
+        // The first twin of each class creates the P-node of the class
+        boolean[] grouped = new boolean[this.n];
+        for (int j = 0; j < this.n; j++) {
+            int r = this.representative[j];
+            if (r != j) {
+                tree.moveTwin(j, r, !grouped[r]);
+                grouped[r] = true;
+            }
+        }
+
+        return tree;
+    }
+
+    /**
+     * Returns the representative of the twin class of an element.
+     *
+     * @param j An element.
+     * @return The representative of its class.
+     */
+    public int getRepresentative(int j) {
+        return this.representative[j];
+    }
+
+    /**
+     * Returns the number of elements of the original instance.
+     *
+     * @return The number of elements.
+     */
+    public int getOriginalSize() {
+        return this.n;
+    }
+
+    /**
+     * Returns the number of elements of the reduced instance, i.e., the
+     * number of twin classes.
+     *
+     * @return The number of representatives.
+     */
+    public int getReducedSize() {
+        return this.classCount;
+    }
+}
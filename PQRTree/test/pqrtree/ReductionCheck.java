@@ -0,0 +1,248 @@
+package pqrtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Checks the reductions against brute force on small instances. The orderings
+ * represented by the tree must be exactly the permutations of the leaves in
+ * which every constraint is consecutive, and the tree must have an R-node
+ * exactly when there is no such permutation.
+ * <p>
+ * A few fixed instances come first, each one a repro of a bug found earlier.
+ * Then random instances are reduced in random orders.
+ * <p>
+ * Usage, after "ant compile-test":
+ * java -cp build/classes:build/test/classes pqrtree.ReductionCheck
+ * [instances] [max n] [seed]
+ *
+ * @author Joao
+ */
+public class ReductionCheck {
+
+    public static void main(String[] args) {
+        int instances = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int maxN = (args.length > 1) ? Integer.parseInt(args[1]) : 7;
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1;
+
+        // mergeIntoLCA left lastChild stale when the merged child was the
+        // last child of the LCA
+        check(5, new int[][] {{4, 1, 2, 3}, {2, 1}, {3, 2}, {4, 1, 0}});
+        // moveAwayFromLCA put the only child left in a collapsed LCA at the
+        // end of the grandparent, reordering a Q-node grandparent
+        check(5, new int[][] {{1, 4, 3, 0}, {0, 2, 4, 1}, {4, 0}, {4, 1}});
+        // mergeIntoLCA did not point a new union-find root at the LCA, so the
+        // parent of its children was the destroyed child
+        check(8, new int[][] {{7, 3}, {1, 4}, {1, 2}, {5, 6}, {3, 1}, {5, 4}, {4, 0}});
+
+        Random random = new Random(seed);
+        for (int i = 0; i < instances; i++) {
+            int n = 2 + random.nextInt(maxN - 1);
+            int[][] constraints = new int[1 + random.nextInt(2 * n)][];
+            for (int j = 0; j < constraints.length; j++) {
+                constraints[j] = randomSubset(n, random);
+            }
+            check(n, constraints);
+        }
+        System.out.println("checked " + instances + " instances");
+    }
+
+    /**
+     * Returns a random set of at least two of the n labels.
+     */
+    private static int[] randomSubset(int n, Random random) {
+        int[] labels = new int[n];
+        for (int i = 0; i < n; i++) {
+            labels[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = labels[i];
+            labels[i] = labels[j];
+            labels[j] = tmp;
+        }
+        return Arrays.copyOf(labels, 2 + random.nextInt(n - 1));
+    }
+
+    /**
+     * Reduces the constraints on a universal tree with n leaves and compares
+     * the tree with the permutations that satisfy them.
+     *
+     * @throws IllegalStateException If they differ.
+     */
+    static void check(int n, int[][] constraints) {
+        PQRTree tree = new PQRTree(n);
+        for (int[] c : constraints) {
+            tree.reduce(c);
+        }
+
+        HashSet<String> valid = new HashSet<>();
+        int[] p = new int[n];
+        for (int i = 0; i < n; i++) {
+            p[i] = i;
+        }
+        do {
+            if (satisfies(p, constraints)) {
+                valid.add(Arrays.toString(p));
+            }
+        } while (nextPermutation(p));
+
+        String s = tree.toString();
+        if (tree.hasRNode() != valid.isEmpty()) {
+            throw new IllegalStateException("Wrong R-node flag: " + s + " for " + Arrays.deepToString(constraints));
+        }
+        if (!tree.hasRNode()) {
+            HashSet<String> represented = new HashSet<>();
+            for (int[] order : orderings(s, new int[] {0})) {
+                represented.add(Arrays.toString(order));
+            }
+            if (!represented.equals(valid)) {
+                throw new IllegalStateException("Wrong orderings: " + s + " for " + Arrays.deepToString(constraints));
+            }
+        }
+    }
+
+    /**
+     * Tests whether every constraint is consecutive in a permutation.
+     */
+    private static boolean satisfies(int[] p, int[][] constraints) {
+        int[] position = new int[p.length];
+        for (int i = 0; i < p.length; i++) {
+            position[p[i]] = i;
+        }
+        for (int[] c : constraints) {
+            int min = p.length;
+            int max = -1;
+            for (int x : c) {
+                min = Math.min(min, position[x]);
+                max = Math.max(max, position[x]);
+            }
+            if (max - min + 1 != c.length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turns an array into the next permutation in lexicographic order.
+     *
+     * @return false if it was the last one.
+     */
+    private static boolean nextPermutation(int[] p) {
+        int i = p.length - 2;
+        while ((i >= 0) && (p[i] > p[i + 1])) {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        int j = p.length - 1;
+        while (p[j] < p[i]) {
+            j--;
+        }
+        int tmp = p[i];
+        p[i] = p[j];
+        p[j] = tmp;
+        for (int a = i + 1, b = p.length - 1; a < b; a++, b--) {
+            tmp = p[a];
+            p[a] = p[b];
+            p[b] = tmp;
+        }
+        return true;
+    }
+
+    /**
+     * Lists the orderings of the leaves of the subtree written at a position
+     * of the string of a tree without R-nodes, and moves the position past it.
+     */
+    private static ArrayList<int[]> orderings(String s, int[] at) {
+        while (s.charAt(at[0]) == ' ') {
+            at[0]++;
+        }
+        ArrayList<int[]> result = new ArrayList<>();
+        char c = s.charAt(at[0]);
+        if (Character.isDigit(c)) {
+            int end = at[0];
+            while ((end < s.length()) && Character.isDigit(s.charAt(end))) {
+                end++;
+            }
+            result.add(new int[] {Integer.parseInt(s.substring(at[0], end))});
+            at[0] = end;
+            return result;
+        }
+
+        // A P-node in parentheses, a Q-node in brackets
+        at[0]++;
+        ArrayList<ArrayList<int[]>> children = new ArrayList<>();
+        while (true) {
+            while (s.charAt(at[0]) == ' ') {
+                at[0]++;
+            }
+            if ((s.charAt(at[0]) == ')') || (s.charAt(at[0]) == ']')) {
+                break;
+            }
+            children.add(orderings(s, at));
+        }
+        at[0]++;
+
+        int[] order = new int[children.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        do {
+            if ((c == '[') && !isIdentity(order) && !isReversal(order)) {
+                continue;
+            }
+            concatenate(children, order, 0, new ArrayList<>(), result);
+        } while (nextPermutation(order));
+        return result;
+    }
+
+    private static boolean isIdentity(int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isReversal(int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] != order.length - 1 - i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds to the result every concatenation of one ordering of each child,
+     * taken in the given order.
+     */
+    private static void concatenate(ArrayList<ArrayList<int[]>> children, int[] order, int i,
+            ArrayList<int[]> prefix, ArrayList<int[]> result) {
+        if (i == order.length) {
+            int length = 0;
+            for (int[] part : prefix) {
+                length += part.length;
+            }
+            int[] all = new int[length];
+            int k = 0;
+            for (int[] part : prefix) {
+                System.arraycopy(part, 0, all, k, part.length);
+                k += part.length;
+            }
+            result.add(all);
+            return;
+        }
+        for (int[] part : children.get(order[i])) {
+            prefix.add(part);
+            concatenate(children, order, i + 1, prefix, result);
+            prefix.remove(prefix.size() - 1);
+        }
+    }
+}